@@ -16,13 +16,17 @@
 package com.kurtraschke.nyctrtproxy;
 
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.transit.realtime.GtfsRealtime.Alert;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.util.EntityUtils;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
@@ -38,6 +42,7 @@ import uk.org.siri.siri.Siri;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Named;
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -51,6 +56,12 @@ public class AlertsProvider {
 
   private CloseableHttpClient _httpClient;
 
+  private Provider<CloseableHttpAsyncClient> _asyncClientProvider;
+
+  private CloseableHttpAsyncClient _asyncClient;
+
+  private boolean _asyncFetch = false;
+
   private ScheduledExecutorService _scheduledExecutorService;
 
   private ScheduledFuture _updater;
@@ -64,12 +75,22 @@ public class AlertsProvider {
   private SiriXmlSerializer _siriXmlSerializer;
 
   @Inject
-  public void setHttpClientConnectionManager(HttpClientConnectionManager connectionManager) {
+  public void setHttpClientConnectionManager(@Named(ProxyModule.ALERTS) HttpClientConnectionManager connectionManager) {
     _connectionManager = connectionManager;
   }
 
   @Inject
-  public void setScheduledExecutorService(ScheduledExecutorService scheduledExecutorService) {
+  public void setHttpAsyncClientProvider(@Named(ProxyModule.ALERTS) Provider<CloseableHttpAsyncClient> asyncClientProvider) {
+    _asyncClientProvider = asyncClientProvider;
+  }
+
+  @Inject(optional = true)
+  public void setAsyncFetch(@Named("NYCT.asyncFetch") boolean asyncFetch) {
+    _asyncFetch = asyncFetch;
+  }
+
+  @Inject
+  public void setScheduledExecutorService(@Named(ProxyModule.ALERTS) ScheduledExecutorService scheduledExecutorService) {
     _scheduledExecutorService = scheduledExecutorService;
   }
 
@@ -96,7 +117,10 @@ public class AlertsProvider {
   @PostConstruct
   public void start() {
     if (_serviceAlertsUrl != null) {
-      _httpClient = HttpClientBuilder.create().setConnectionManager(_connectionManager).build();
+      if (_asyncFetch)
+        _asyncClient = _asyncClientProvider.get();
+      else
+        _httpClient = HttpClientBuilder.create().setConnectionManager(_connectionManager).build();
       _updater = _scheduledExecutorService.scheduleWithFixedDelay(this::update, 0, _refreshRate, TimeUnit.SECONDS);
     }
   }
@@ -108,17 +132,60 @@ public class AlertsProvider {
     }
     _scheduledExecutorService.shutdown();
     _connectionManager.shutdown();
+    if (_asyncClient != null) {
+      try {
+        _asyncClient.close();
+      } catch (IOException ex) {
+        _log.warn("Error closing async HTTP client", ex);
+      }
+    }
   }
 
   public void update() {
     HttpGet get = new HttpGet(_serviceAlertsUrl);
 
+    if (_asyncFetch) {
+      // Parse on the scheduler thread rather than the I/O reactor.
+      _asyncClient.execute(get, new FutureCallback<HttpResponse>() {
+        @Override
+        public void completed(HttpResponse response) {
+          _scheduledExecutorService.execute(() -> onResponse(response, null));
+        }
+
+        @Override
+        public void failed(Exception ex) {
+          _scheduledExecutorService.execute(() -> onResponse(null, ex));
+        }
+
+        @Override
+        public void cancelled() {
+          _log.error("Service alerts request cancelled");
+        }
+      });
+      return;
+    }
+
+    HttpResponse response = null;
+    Exception error = null;
+    try {
+      response = _httpClient.execute(get);
+    } catch (Exception ex) {
+      error = ex;
+    }
+    onResponse(response, error);
+  }
+
+  private void onResponse(HttpResponse response, Exception error) {
     Siri siri = null;
-    try (CloseableHttpResponse response = _httpClient.execute(get)) {
+    try {
+      if (error != null)
+        throw error;
       String xml = EntityUtils.toString(response.getEntity());
       siri = _siriXmlSerializer.fromXml(xml);
     } catch(Exception ex) {
       _log.error("Error getting service alerts URL: " + ex.getMessage());
+    } finally {
+      HttpClientUtils.closeQuietly(response);
     }
     if (siri == null) {
       _log.error("Unable to process siri");
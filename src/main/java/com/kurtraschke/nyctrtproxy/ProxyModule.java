@@ -15,9 +15,14 @@
  */
 package com.kurtraschke.nyctrtproxy;
 
+import com.kurtraschke.nyctrtproxy.services.ActiveServiceCache;
 import com.kurtraschke.nyctrtproxy.services.CloudwatchProxyDataListener;
+import com.kurtraschke.nyctrtproxy.services.ConnectionManagerProvider;
+import com.kurtraschke.nyctrtproxy.services.HttpAsyncClientProvider;
 import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
 import com.kurtraschke.nyctrtproxy.services.ProxyDataListener;
+import com.kurtraschke.nyctrtproxy.services.ScheduledExecutorProvider;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
 import com.kurtraschke.nyctrtproxy.services.TripMatcher;
 import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
@@ -28,15 +33,15 @@ import org.onebusaway.guice.jsr250.JSR250Module;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import com.google.inject.Scopes;
+import com.google.inject.name.Names;
 import com.kurtraschke.nyctrtproxy.services.CalendarServiceDataProvider;
 import com.kurtraschke.nyctrtproxy.services.GtfsRelationalDaoProvider;
 
 import org.apache.http.conn.HttpClientConnectionManager;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.onebusaway.nyc.siri.support.SiriXmlSerializer;
 
 import java.util.Set;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
 /**
@@ -45,6 +50,10 @@ import java.util.concurrent.ScheduledExecutorService;
  */
 public class ProxyModule extends AbstractModule {
 
+  public static final String TRIP_UPDATES = "tripUpdates";
+
+  public static final String ALERTS = "alerts";
+
   public static void addModuleAndDependencies(Set<Module> modules) {
     GtfsRealtimeExporterModule.addModuleAndDependencies(modules);
     JSR250Module.addModuleAndDependencies(modules);
@@ -53,11 +62,10 @@ public class ProxyModule extends AbstractModule {
 
   @Override
   protected void configure() {
-    bind(HttpClientConnectionManager.class)
-            .toInstance(new PoolingHttpClientConnectionManager());
-
-    bind(ScheduledExecutorService.class)
-            .toInstance(Executors.newSingleThreadScheduledExecutor());
+    // Trip updates and alerts each get their own threads and connections, so neither can starve the other.
+    // Feeds are fetched concurrently from the same host, so allow more than the default two connections per route.
+    bindSubsystem(TRIP_UPDATES, 5, 10);
+    bindSubsystem(ALERTS, 1, 2);
 
     bind(CalendarServiceData.class)
             .toProvider(CalendarServiceDataProvider.class)
@@ -70,6 +78,12 @@ public class ProxyModule extends AbstractModule {
     bind(ProxyDataListener.class)
             .toInstance(new CloudwatchProxyDataListener());
 
+    bind(ActiveServiceCache.class)
+            .toInstance(new ActiveServiceCache());
+
+    bind(StaticTripIndex.class)
+            .toInstance(new StaticTripIndex());
+
     bind(TripMatcher.class)
             .toInstance(new LazyTripMatcher());
 
@@ -81,6 +95,28 @@ public class ProxyModule extends AbstractModule {
             .toInstance(new SiriXmlSerializer());
   }
 
+  private void bindSubsystem(String name, int defaultThreads, int defaultMaxConnectionsPerRoute) {
+    bindExecutor(name, defaultThreads);
+
+    bind(HttpClientConnectionManager.class)
+            .annotatedWith(Names.named(name))
+            .toProvider(new ConnectionManagerProvider(name, defaultMaxConnectionsPerRoute))
+            .in(Scopes.SINGLETON);
+
+    // Only created when NYCT.asyncFetch is set.
+    bind(CloseableHttpAsyncClient.class)
+            .annotatedWith(Names.named(name))
+            .toProvider(new HttpAsyncClientProvider(name, defaultMaxConnectionsPerRoute))
+            .in(Scopes.SINGLETON);
+  }
+
+  private void bindExecutor(String name, int defaultThreads) {
+    bind(ScheduledExecutorService.class)
+            .annotatedWith(Names.named(name))
+            .toProvider(new ScheduledExecutorProvider(name, defaultThreads))
+            .in(Scopes.SINGLETON);
+  }
+
   /**
    * Implement hashCode() and equals() such that two instances of the module
    * will be equal.
@@ -15,39 +15,59 @@
  */
 package com.kurtraschke.nyctrtproxy;
 
-import com.google.common.collect.Lists;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.kurtraschke.nyctrtproxy.model.CircuitBreaker;
+import com.kurtraschke.nyctrtproxy.model.FeedState;
+import com.kurtraschke.nyctrtproxy.services.ProxyDataListener;
 import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import com.kurtraschke.nyctrtproxy.util.FeedBuffer;
+import com.kurtraschke.nyctrtproxy.util.LazyFeedParser;
+import com.sun.management.ThreadMXBean;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
 
 import com.google.protobuf.ExtensionRegistry;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate;
 import com.google.transit.realtime.GtfsRealtimeNYCT;
 
-import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.HttpClientUtils;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -63,26 +83,62 @@ public class ProxyProvider {
 
   private static final ExtensionRegistry _extensionRegistry;
 
+  private static final ThreadMXBean _threadBean;
+
   private GtfsRealtimeSink _tripUpdatesSink;
 
   private String _key;
 
+  private String _feedUrl = "http://datamine.mta.info/mta_esi.php";
+
   private HttpClientConnectionManager _connectionManager;
 
   private CloseableHttpClient _httpClient;
 
-  private ScheduledExecutorService _scheduledExecutorService;
+  private Provider<CloseableHttpAsyncClient> _asyncClientProvider;
+
+  private CloseableHttpAsyncClient _asyncClient;
+
+  private boolean _asyncFetch = false;
+
+  private int _requestTimeout = 30;
+
+  private Map<Integer, Integer> _requestTimeoutByFeed = Collections.emptyMap();
+
+  private boolean _connectionReuse = true;
+
+  private Map<Integer, Boolean> _connectionReuseByFeed = Collections.emptyMap();
+
+  private ScheduledExecutorService _feedExecutorService;
 
-  private ScheduledFuture _updater;
+  private Map<Integer, FeedState> _feedStates = new ConcurrentHashMap<>();
+
+  private Map<Integer, CircuitBreaker> _circuitBreakers = new ConcurrentHashMap<>();
+
+  private ProxyDataListener _listener;
 
   private TripUpdateProcessor _processor;
 
   private int _nTries = 5;
 
+  private Map<Integer, Integer> _nTriesByFeed = Collections.emptyMap();
+
   private int _refreshRate = 60;
 
+  private Map<Integer, Integer> _refreshRateByFeed = Collections.emptyMap();
+
   private int _retryDelay = 5;
 
+  private int _maxRetryDelay = 30;
+
+  private boolean _lazyParse = false;
+
+  private int _circuitBreakerThreshold = 3;
+
+  private int _circuitBreakerOpenTime = 300;
+
+  private int _lastGoodTtl = 300;
+
   private List<Integer> _feedIds = Arrays.asList(1, 2, 11, 16, 21);
 
   static {
@@ -90,6 +146,12 @@ public class ProxyProvider {
     _extensionRegistry.add(GtfsRealtimeNYCT.nyctFeedHeader);
     _extensionRegistry.add(GtfsRealtimeNYCT.nyctTripDescriptor);
     _extensionRegistry.add(GtfsRealtimeNYCT.nyctStopTimeUpdate);
+
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean instanceof ThreadMXBean && ((ThreadMXBean) threadBean).isThreadAllocatedMemorySupported())
+      _threadBean = (ThreadMXBean) threadBean;
+    else
+      _threadBean = null;
   }
 
   @Inject
@@ -98,13 +160,45 @@ public class ProxyProvider {
   }
 
   @Inject
-  public void setHttpClientConnectionManager(HttpClientConnectionManager connectionManager) {
+  public void setHttpClientConnectionManager(@Named(ProxyModule.TRIP_UPDATES) HttpClientConnectionManager connectionManager) {
     _connectionManager = connectionManager;
   }
 
   @Inject
-  public void setScheduledExecutorService(ScheduledExecutorService service) {
-    _scheduledExecutorService = service;
+  public void setHttpAsyncClientProvider(@Named(ProxyModule.TRIP_UPDATES) Provider<CloseableHttpAsyncClient> asyncClientProvider) {
+    _asyncClientProvider = asyncClientProvider;
+  }
+
+  @Inject(optional = true)
+  public void setAsyncFetch(@Named("NYCT.asyncFetch") boolean asyncFetch) {
+    _asyncFetch = asyncFetch;
+  }
+
+  @Inject(optional = true)
+  public void setRequestTimeout(@Named("NYCT.requestTimeout") int requestTimeout) {
+    _requestTimeout = requestTimeout;
+  }
+
+  @Inject(optional = true)
+  public void setRequestTimeoutByFeed(@Named("NYCT.requestTimeoutByFeed") String json) {
+    Type type = new TypeToken<Map<Integer, Integer>>(){}.getType();
+    _requestTimeoutByFeed = new Gson().fromJson(json, type);
+  }
+
+  @Inject(optional = true)
+  public void setConnectionReuse(@Named("NYCT.connectionReuse") boolean connectionReuse) {
+    _connectionReuse = connectionReuse;
+  }
+
+  @Inject(optional = true)
+  public void setConnectionReuseByFeed(@Named("NYCT.connectionReuseByFeed") String json) {
+    Type type = new TypeToken<Map<Integer, Boolean>>(){}.getType();
+    _connectionReuseByFeed = new Gson().fromJson(json, type);
+  }
+
+  @Inject
+  public void setExecutorService(@Named(ProxyModule.TRIP_UPDATES) ScheduledExecutorService executorService) {
+    _feedExecutorService = executorService;
   }
 
   @Inject
@@ -112,11 +206,22 @@ public class ProxyProvider {
     _key = key;
   }
 
+  @Inject(optional = true)
+  public void setFeedUrl(@Named("NYCT.feedUrl") String feedUrl) {
+    _feedUrl = feedUrl;
+  }
+
   @Inject(optional = true)
   public void setNTries(@Named("NYCT.nTries") int nTries) {
     _nTries = nTries;
   }
 
+  @Inject(optional = true)
+  public void setNTriesByFeed(@Named("NYCT.nTriesByFeed") String json) {
+    Type type = new TypeToken<Map<Integer, Integer>>(){}.getType();
+    _nTriesByFeed = new Gson().fromJson(json, type);
+  }
+
   @Inject(optional = true)
   public void setFeedIds(@Named("NYCT.feedIds") String json) {
     Type type = new TypeToken<List<Integer>>(){}.getType();
@@ -128,88 +233,374 @@ public class ProxyProvider {
     _refreshRate = refreshRate;
   }
 
+  @Inject(optional = true)
+  public void setRefreshRateByFeed(@Named("NYCT.refreshRateByFeed") String json) {
+    Type type = new TypeToken<Map<Integer, Integer>>(){}.getType();
+    _refreshRateByFeed = new Gson().fromJson(json, type);
+  }
+
   @Inject(optional = true)
   public void setRetryDelay(@Named("NYCT.retryDelay") int retryDelay) {
     _retryDelay = retryDelay;
   }
 
+  @Inject(optional = true)
+  public void setMaxRetryDelay(@Named("NYCT.maxRetryDelay") int maxRetryDelay) {
+    _maxRetryDelay = maxRetryDelay;
+  }
+
+  @Inject(optional = true)
+  public void setLazyParse(@Named("NYCT.lazyParse") boolean lazyParse) {
+    _lazyParse = lazyParse;
+  }
+
+  @Inject(optional = true)
+  public void setCircuitBreakerThreshold(@Named("NYCT.circuitBreakerThreshold") int circuitBreakerThreshold) {
+    _circuitBreakerThreshold = circuitBreakerThreshold;
+  }
+
+  @Inject(optional = true)
+  public void setCircuitBreakerOpenTime(@Named("NYCT.circuitBreakerOpenTime") int circuitBreakerOpenTime) {
+    _circuitBreakerOpenTime = circuitBreakerOpenTime;
+  }
+
+  @Inject(optional = true)
+  public void setLastGoodTtl(@Named("NYCT.lastGoodTtl") int lastGoodTtl) {
+    _lastGoodTtl = lastGoodTtl;
+  }
+
   @Inject
   public void setTripUpdateProcessor(TripUpdateProcessor processor) {
     _processor = processor;
   }
 
+  @Inject(optional = true)
+  public void setListener(ProxyDataListener listener) {
+    _listener = listener;
+  }
+
   @PostConstruct
   public void start() {
-    _httpClient = HttpClientBuilder.create().setConnectionManager(_connectionManager).build();
-    _updater = _scheduledExecutorService.scheduleWithFixedDelay(this::update, 0, _refreshRate, TimeUnit.SECONDS);
+    for (int feedId : _feedIds) {
+      _feedStates.put(feedId, new FeedState(feedId));
+      _circuitBreakers.put(feedId, new CircuitBreaker(_circuitBreakerThreshold, _circuitBreakerOpenTime * 1000L));
+    }
+    if (_asyncFetch)
+      _asyncClient = _asyncClientProvider.get();
+    else
+      _httpClient = HttpClientBuilder.create().setConnectionManager(_connectionManager).build();
+    // Each feed is polled on its own schedule, so a slow feed does not hold back the others.
+    for (int feedId : _feedIds) {
+      schedule(() -> update(feedId), 0);
+    }
   }
 
   @PreDestroy
   public void stop() {
-    _updater.cancel(false);
-    _scheduledExecutorService.shutdown();
+    _feedExecutorService.shutdownNow();
     _connectionManager.shutdown();
+    if (_asyncClient != null) {
+      try {
+        _asyncClient.close();
+      } catch (IOException ex) {
+        _log.warn("Error closing async HTTP client", ex);
+      }
+    }
   }
 
-  public void update() {
-    _log.info("doing update");
+  /**
+   * Fetch and process a single feed, store its trip updates and republish the combined feed.
+   *
+   * @param feedId ID of the feed to update
+   */
+  public void update(int feedId) {
+    FeedState state = _feedStates.get(feedId);
+    CircuitBreaker breaker = _circuitBreakers.get(feedId);
+    CircuitBreaker.State before = breaker.getState();
+    boolean allowed = breaker.allowRequest(System.currentTimeMillis());
+    reportTransition(feedId, before, breaker.getState());
+
+    if (!allowed) {
+      _log.info("circuit open for feed {}, not fetching", feedId);
+      try {
+        if (expireLastGood(state))
+          publish();
+      } catch (Exception e) {
+        _log.error("Error publishing feed {}", feedId, e);
+      }
+      schedule(() -> update(feedId), _refreshRateByFeed.getOrDefault(feedId, _refreshRate) * 1000L);
+      return;
+    }
 
-    GtfsRealtimeFullUpdate grfu = new GtfsRealtimeFullUpdate();
+    _log.info("doing update for feed {}", feedId);
+    state.startCycle();
+    poll(state, 0, 0);
+  }
 
-    List<TripUpdate> tripUpdates = Lists.newArrayList();
+  // Poll a feed once. A failed attempt is retried as a delayed task, with backoff, until the feed's retry
+  // budget is used up; no thread sleeps in between. Once the cycle is over the next regular poll is scheduled.
+  private void poll(FeedState state, int attempt, long waitedMillis) {
+    HttpGet get = buildRequest(state);
+
+    if (_asyncFetch) {
+      // The response is buffered by the I/O reactor; parsing and processing happen on the feed pool, so the
+      // I/O threads only ever move bytes.
+      _asyncClient.execute(get, new FutureCallback<HttpResponse>() {
+        @Override
+        public void completed(HttpResponse response) {
+          handOff(() -> onResponse(state, attempt, waitedMillis, response, null));
+        }
 
-    // For each feed ID, read in GTFS-RT, process trip updates, push to output.
-    for (int feedId : _feedIds) {
-      URI feedUrl;
+        @Override
+        public void failed(Exception ex) {
+          handOff(() -> onResponse(state, attempt, waitedMillis, null, ex));
+        }
 
-      try {
-        URIBuilder ub = new URIBuilder("http://datamine.mta.info/mta_esi.php");
+        @Override
+        public void cancelled() {
+          handOff(() -> onResponse(state, attempt, waitedMillis, null, new IOException("request cancelled")));
+        }
+      });
+      return;
+    }
 
-        ub.addParameter("key", _key);
-        ub.addParameter("feed_id", Integer.toString(feedId));
+    HttpResponse response = null;
+    Exception error = null;
+    try {
+      response = _httpClient.execute(get);
+    } catch (Exception e) {
+      error = e;
+    }
+    onResponse(state, attempt, waitedMillis, response, error);
+  }
 
-        feedUrl = ub.build();
-      } catch (URISyntaxException ex) {
-        throw new RuntimeException(ex);
-      }
+  private void onResponse(FeedState state, int attempt, long waitedMillis, HttpResponse response, Exception error) {
+    int feedId = state.getFeedId();
+    UpdateResult result;
+    try {
+      if (error != null)
+        throw error;
+      result = updateFeed(state, response);
+    } catch (Exception e) {
+      _log.error("Error updating feed={}. try={}. Error={}", feedId, attempt, e.getMessage());
+      result = UpdateResult.FAILED;
+    } finally {
+      HttpClientUtils.closeQuietly(response);
+    }
 
-      HttpGet get = new HttpGet(feedUrl);
-
-      FeedMessage message = null;
-      for (int tries = 0; tries < _nTries; tries++) {
-        try {
-          CloseableHttpResponse response = _httpClient.execute(get);
-          try (InputStream streamContent = response.getEntity().getContent()) {
-           message = FeedMessage.parseFrom(streamContent, _extensionRegistry);
-           if (!message.getEntityList().isEmpty())
-            break;
-           Thread.sleep(_retryDelay * 1000);
-          }
-        } catch (Exception e) {
-          _log.error("Error parsing protocol buffer for feed={}. try={}, retry={}. Error={}",
-                  feedId, tries, tries < _nTries, e.getMessage());
-        }
-      }
+    CircuitBreaker breaker = _circuitBreakers.get(feedId);
 
-      if (message != null) {
-        try {
-          tripUpdates.addAll(_processor.processFeed(feedId, message));
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
-      }
+    // A half-open breaker lets a single request through.
+    if (result == UpdateResult.FAILED && breaker.getState() == CircuitBreaker.State.CLOSED
+            && attempt + 1 < _nTriesByFeed.getOrDefault(feedId, _nTries)) {
+      long delay = getRetryDelayMillis(attempt);
+      _log.info("Retrying feed={} in {}ms. try={}", feedId, delay, attempt + 1);
+      schedule(() -> poll(state, attempt + 1, waitedMillis + delay), delay);
+      return;
+    }
 
+    if (attempt > 0 && _listener != null)
+      _listener.reportRetries(Integer.toString(feedId), attempt, waitedMillis);
+
+    CircuitBreaker.State before = breaker.getState();
+    if (result == UpdateResult.FAILED)
+      breaker.recordFailure(System.currentTimeMillis());
+    else
+      breaker.recordSuccess();
+    reportTransition(feedId, before, breaker.getState());
+
+    try {
+      if (result == UpdateResult.CHANGED || (result == UpdateResult.FAILED && expireLastGood(state)))
+        publish();
+    } catch (Exception e) {
+      _log.error("Error publishing feed {}", feedId, e);
     }
 
-    for (TripUpdate tu : tripUpdates) {
-      FeedEntity.Builder feb = FeedEntity.newBuilder();
-      feb.setTripUpdate(tu);
-      feb.setId(tu.getTrip().getTripId());
-      grfu.addEntity(feb.build());
+    if (_listener != null)
+      _listener.reportUpdateCycle(Integer.toString(feedId), state.getCycleMillis());
+
+    schedule(() -> update(feedId), _refreshRateByFeed.getOrDefault(feedId, _refreshRate) * 1000L);
+  }
+
+  // A failed feed keeps its last good trip updates until they are older than the TTL; returns true if they were
+  // dropped now.
+  private boolean expireLastGood(FeedState state) {
+    if (state.getTripUpdates().isEmpty()
+            || System.currentTimeMillis() - state.getUpdatedAt() < _lastGoodTtl * 1000L)
+      return false;
+    _log.info("dropping last good trip updates for feed {}", state.getFeedId());
+    state.clear();
+    return true;
+  }
+
+  private void reportTransition(int feedId, CircuitBreaker.State before, CircuitBreaker.State after) {
+    if (before == after)
+      return;
+    _log.info("circuit breaker for feed {}: {} -> {}", feedId, before, after);
+    if (_listener != null)
+      _listener.reportCircuitBreakerState(Integer.toString(feedId), after);
+  }
+
+  // Exponential backoff from the configured retry delay, capped, with jitter so feeds do not retry in lockstep.
+  private long getRetryDelayMillis(int attempt) {
+    long delay = Math.min(_retryDelay * 1000L << Math.min(attempt, 16), _maxRetryDelay * 1000L);
+    return ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+  }
+
+  private void schedule(Runnable task, long delayMillis) {
+    if (!_feedExecutorService.isShutdown())
+      _feedExecutorService.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void handOff(Runnable task) {
+    if (!_feedExecutorService.isShutdown())
+      _feedExecutorService.execute(task);
+  }
+
+  // Assemble the latest trip updates from every feed into one full update.
+  private synchronized void publish() {
+    GtfsRealtimeFullUpdate grfu = new GtfsRealtimeFullUpdate();
+
+    for (int feedId : _feedIds) {
+      for (TripUpdate tu : _feedStates.get(feedId).getTripUpdates()) {
+        FeedEntity.Builder feb = FeedEntity.newBuilder();
+        feb.setTripUpdate(tu);
+        feb.setId(tu.getTrip().getTripId());
+        grfu.addEntity(feb.build());
+      }
     }
 
     _tripUpdatesSink.handleFullUpdate(grfu);
   }
 
+  private HttpGet buildRequest(FeedState state) {
+    int feedId = state.getFeedId();
+    URI feedUrl;
+
+    try {
+      URIBuilder ub = new URIBuilder(_feedUrl);
+
+      ub.addParameter("key", _key);
+      ub.addParameter("feed_id", Integer.toString(feedId));
+
+      feedUrl = ub.build();
+    } catch (URISyntaxException ex) {
+      throw new RuntimeException(ex);
+    }
+
+    HttpGet get = new HttpGet(feedUrl);
+    int timeoutMillis = _requestTimeoutByFeed.getOrDefault(feedId, _requestTimeout) * 1000;
+    get.setConfig(RequestConfig.custom()
+            .setConnectTimeout(timeoutMillis)
+            .setConnectionRequestTimeout(timeoutMillis)
+            .setSocketTimeout(timeoutMillis)
+            .build());
+    if (!_connectionReuseByFeed.getOrDefault(feedId, _connectionReuse))
+      get.setHeader(HttpHeaders.CONNECTION, "close");
+    if (state.getEtag() != null)
+      get.setHeader(HttpHeaders.IF_NONE_MATCH, state.getEtag());
+    if (state.getLastModified() != null)
+      get.setHeader(HttpHeaders.IF_MODIFIED_SINCE, state.getLastModified());
+    return get;
+  }
+
+  // Read in GTFS-RT for a single feed from its response and process its trip updates.
+  private UpdateResult updateFeed(FeedState state, HttpResponse response) throws IOException {
+    int feedId = state.getFeedId();
+    if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+      return skipUpdate(state);
+    }
+    String etag = headerValue(response, HttpHeaders.ETAG);
+    String lastModified = headerValue(response, HttpHeaders.LAST_MODIFIED);
+
+    // Read the body into the feed's reusable buffer and parse from there, rather than through the stream's own
+    // chunked buffering.
+    long allocatedBefore = allocatedBytes();
+    FeedBuffer buffer = state.getBuffer();
+    HttpEntity entity = response.getEntity();
+    int nBytes;
+    try (InputStream streamContent = entity.getContent()) {
+      nBytes = buffer.readFrom(streamContent, entity.getContentLength());
+    }
+
+    FeedMessage message = null;
+    LazyFeedParser parser = null;
+    FeedHeader header;
+    int nEntities;
+    if (_lazyParse) {
+      parser = new LazyFeedParser(buffer.getBytes(), buffer.getLength());
+      header = parser.parseHeader(_extensionRegistry);
+      nEntities = parser.getEntityCount();
+    } else {
+      message = FeedMessage.parseFrom(buffer.newCodedInput(), _extensionRegistry);
+      header = message.getHeader();
+      nEntities = message.getEntityCount();
+    }
+
+    if (nEntities == 0) {
+      _log.error("Empty feed={}", feedId);
+      return UpdateResult.FAILED;
+    }
+
+    long timestamp = header.getTimestamp();
+    if (timestamp == state.getTimestamp()) {
+      // Same content, but keep the new validators so the next request can get a 304.
+      state.setValidators(etag, lastModified);
+      return skipUpdate(state);
+    }
+
+    if (parser != null) {
+      // Only decode the entities processFeed will match. A feed too stale to publish is passed on with just its
+      // header, since processFeed drops it before looking at any entity.
+      Predicate<String> routeFilter = _processor.exceedsLatencyLimit(timestamp)
+              ? routeId -> false
+              : _processor.getRouteFilter(feedId, header);
+      message = parser.parse(header, _extensionRegistry, routeFilter);
+    }
+
+    long allocatedAfter = allocatedBytes();
+    if (_listener != null && allocatedBefore >= 0 && allocatedAfter >= 0)
+      _listener.reportFeedParse(Integer.toString(feedId), nBytes, allocatedAfter - allocatedBefore);
+
+    try {
+      state.update(_processor.processFeed(feedId, message), timestamp, etag, lastModified);
+    } catch (Exception e) {
+      _log.error("Error processing feed {}", feedId, e);
+      state.clear();
+    }
+    return UpdateResult.CHANGED;
+  }
+
+  // Upstream has nothing new; keep the previous output unless it has since become too old to publish.
+  private UpdateResult skipUpdate(FeedState state) {
+    long nSkipped = state.skipUpdate();
+    _log.info("feed={} unchanged since timestamp={}, skipped={}", state.getFeedId(), state.getTimestamp(), nSkipped);
+    if (_listener != null)
+      _listener.reportSkippedUpdate(Integer.toString(state.getFeedId()), nSkipped);
+    if (!state.getTripUpdates().isEmpty() && _processor.exceedsLatencyLimit(state.getTimestamp())) {
+      _log.info("Feed {} ignored, too high latency", state.getFeedId());
+      state.clear();
+      return UpdateResult.CHANGED;
+    }
+    return UpdateResult.UNCHANGED;
+  }
+
+  private enum UpdateResult {
+    CHANGED,
+    UNCHANGED,
+    FAILED
+  }
+
+  // Bytes allocated so far by the current thread, or -1 if the JVM cannot tell.
+  private static long allocatedBytes() {
+    ThreadMXBean threadBean = _threadBean;
+    if (threadBean == null || !threadBean.isThreadAllocatedMemoryEnabled())
+      return -1;
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
 
+  private static String headerValue(HttpResponse response, String name) {
+    Header header = response.getFirstHeader(name);
+    return header != null ? header.getValue() : null;
+  }
 }
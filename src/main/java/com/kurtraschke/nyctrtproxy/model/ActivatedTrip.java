@@ -15,12 +15,9 @@
  */
 package com.kurtraschke.nyctrtproxy.model;
 
-import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 
-import java.util.List;
-
 /**
  * Trip active on a service day.
  *
@@ -29,15 +26,11 @@ import java.util.List;
 public class ActivatedTrip {
 
   private final ServiceDate sd;
-  private final Trip theTrip;
-  private final NyctTripId parsedTripId;
-  private List<StopTime> stopTimes;
+  private final StaticTripInfo tripInfo;
 
-  public ActivatedTrip(ServiceDate sd, Trip theTrip, List<StopTime> stopTimes) {
+  public ActivatedTrip(ServiceDate sd, StaticTripInfo tripInfo) {
     this.sd = sd;
-    this.theTrip = theTrip;
-    this.parsedTripId = NyctTripId.buildFromTrip(theTrip);
-    this.stopTimes = stopTimes;
+    this.tripInfo = tripInfo;
   }
 
   public ServiceDate getServiceDate() {
@@ -45,20 +38,20 @@ public class ActivatedTrip {
   }
 
   public Trip getTrip() {
-    return theTrip;
+    return tripInfo.getTrip();
   }
 
   public NyctTripId getParsedTripId() {
-    return parsedTripId;
+    return tripInfo.getParsedTripId();
   }
 
-  public List<StopTime> getStopTimes() {
-    return stopTimes;
+  public StaticTripInfo getTripInfo() {
+    return tripInfo;
   }
 
   @Override
   public String toString() {
-    return "ActivatedTrip{" + "sd=" + sd + ", theTrip=" + theTrip + '}';
+    return "ActivatedTrip{" + "sd=" + sd + ", theTrip=" + getTrip() + '}';
   }
 
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Service IDs active on a service date, as a bitset over an index of all service IDs, and the time the service
+ * date starts.
+ */
+public class ActiveServices {
+
+  private final ServiceDate serviceDate;
+  private final Map<AgencyAndId, Integer> serviceIndex;
+  private final BitSet active;
+  private final long origin;
+
+  /**
+   * @param serviceDate service date
+   * @param serviceIndex index of every service ID, shared between dates
+   * @param active bits of serviceIndex that are active on the date
+   * @param origin start of the service date, in seconds since the epoch
+   */
+  public ActiveServices(ServiceDate serviceDate, Map<AgencyAndId, Integer> serviceIndex, BitSet active, long origin) {
+    this.serviceDate = serviceDate;
+    this.serviceIndex = serviceIndex;
+    this.active = active;
+    this.origin = origin;
+  }
+
+  public ServiceDate getServiceDate() {
+    return serviceDate;
+  }
+
+  public boolean isActive(AgencyAndId serviceId) {
+    Integer i = serviceIndex.get(serviceId);
+    return i != null && active.get(i);
+  }
+
+  /**
+   * @param serviceIndex index of a service ID, from {@link com.kurtraschke.nyctrtproxy.services.ActiveServiceCache#getServiceIndex}
+   * @return true if the service is active on the date
+   */
+  public boolean isActive(int serviceIndex) {
+    return serviceIndex >= 0 && active.get(serviceIndex);
+  }
+
+  /** @return start of the service date, in seconds since the epoch */
+  public long getOrigin() {
+    return origin;
+  }
+}
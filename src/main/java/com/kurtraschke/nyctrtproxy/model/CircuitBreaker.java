@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+/**
+ * Circuit breaker for polling one upstream feed.
+ *
+ * The breaker opens after a number of consecutive failed poll cycles, and no requests are made while it is open.
+ * Once the open period has passed it is half-open: one request is let through, which closes the breaker if it
+ * succeeds and opens it again if it fails. Not thread-safe; a feed is only polled by one thread at a time.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+
+  private final long openMillis;
+
+  private State state = State.CLOSED;
+
+  private int consecutiveFailures = 0;
+
+  private long openedAt;
+
+  /**
+   * @param failureThreshold consecutive failures after which the breaker opens
+   * @param openMillis how long the breaker stays open before letting a request through
+   */
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /**
+   * Check whether a request may be made, moving from open to half-open once the open period has passed.
+   *
+   * @param now current time in millis
+   * @return false if the breaker is open
+   */
+  public boolean allowRequest(long now) {
+    if (state == State.OPEN && now - openedAt >= openMillis)
+      state = State.HALF_OPEN;
+    return state != State.OPEN;
+  }
+
+  public void recordSuccess() {
+    consecutiveFailures = 0;
+    state = State.CLOSED;
+  }
+
+  /**
+   * @param now current time in millis
+   */
+  public void recordFailure(long now) {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = now;
+    }
+  }
+}
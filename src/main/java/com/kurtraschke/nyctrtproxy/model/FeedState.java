@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.kurtraschke.nyctrtproxy.util.FeedBuffer;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Latest processed output of one upstream feed, plus what is needed to tell whether the next poll has anything new.
+ *
+ * A feed is only updated by one thread at a time; the trip updates are read when publishing from any thread.
+ */
+public class FeedState {
+
+  private final int feedId;
+
+  private volatile List<TripUpdate> tripUpdates = Collections.emptyList();
+
+  private String etag;
+
+  private String lastModified;
+
+  private long timestamp = -1;
+
+  private long updatedAt = 0;
+
+  private long cycleStart;
+
+  private long nSkippedUpdates = 0;
+
+  private final FeedBuffer buffer = new FeedBuffer();
+
+  public FeedState(int feedId) {
+    this.feedId = feedId;
+  }
+
+  public int getFeedId() {
+    return feedId;
+  }
+
+  public List<TripUpdate> getTripUpdates() {
+    return tripUpdates;
+  }
+
+  /**
+   * Store the processed trip updates along with the validators of the response they came from.
+   *
+   * @param tripUpdates processed trip updates
+   * @param timestamp feed header timestamp, in seconds
+   * @param etag ETag header of the response, or null
+   * @param lastModified Last-Modified header of the response, or null
+   */
+  public void update(List<TripUpdate> tripUpdates, long timestamp, String etag, String lastModified) {
+    this.tripUpdates = tripUpdates;
+    this.timestamp = timestamp;
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.updatedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Drop the stored output after a failed update. The next response is always processed in full.
+   */
+  public void clear() {
+    update(Collections.emptyList(), -1, null, null);
+  }
+
+  /**
+   * Replace the validators of the stored output, for a response that had the same content under new validators.
+   *
+   * @param etag ETag header of the response, or null
+   * @param lastModified Last-Modified header of the response, or null
+   */
+  public void setValidators(String etag, String lastModified) {
+    this.etag = etag;
+    this.lastModified = lastModified;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return time in millis at which the trip updates were last replaced
+   */
+  public long getUpdatedAt() {
+    return updatedAt;
+  }
+
+  /**
+   * Record that a poll returned nothing new, so the previous output was reused.
+   *
+   * @return number of updates skipped so far for this feed
+   */
+  public long skipUpdate() {
+    return ++nSkippedUpdates;
+  }
+
+  public long getSkippedUpdates() {
+    return nSkippedUpdates;
+  }
+
+  /**
+   * Mark the start of a poll cycle: fetching, retrying, processing and publishing.
+   */
+  public void startCycle() {
+    cycleStart = System.nanoTime();
+  }
+
+  /**
+   * @return time in millis since the current poll cycle started
+   */
+  public long getCycleMillis() {
+    return (System.nanoTime() - cycleStart) / 1000000;
+  }
+
+  /**
+   * @return buffer that response bodies for this feed are read into; reused from one poll to the next
+   */
+  public FeedBuffer getBuffer() {
+    return buffer;
+  }
+}
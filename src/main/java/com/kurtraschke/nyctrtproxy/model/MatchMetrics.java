@@ -64,6 +64,10 @@ public class MatchMetrics {
         nAddedTrips++;
         nUnmatchedNoStopMatch++;
         break;
+      case DUPLICATE_MATCH:
+        nAddedTrips++;
+        nDuplicates++;
+        break;
       case STRICT_MATCH:
         nMatchedTrips++;
         nStrictMatch++;
@@ -87,6 +91,29 @@ public class MatchMetrics {
     }
   }
 
+  /**
+   * Add metrics aggregated elsewhere, eg for one route of a feed, to these. Latency is not changed.
+   *
+   * @param other metrics to add
+   */
+  public void merge(MatchMetrics other) {
+    nMatchedTrips += other.nMatchedTrips;
+    nAddedTrips += other.nAddedTrips;
+    nUnmatchedNoStartDate += other.nUnmatchedNoStartDate;
+    nStrictMatch += other.nStrictMatch;
+    nLooseMatchSameDay += other.nLooseMatchSameDay;
+    nLooseMatchOtherDay += other.nLooseMatchOtherDay;
+    nUnmatchedNoStopMatch += other.nUnmatchedNoStopMatch;
+    nLooseMatchCoercion += other.nLooseMatchCoercion;
+    nBadId += other.nBadId;
+    nMergedTrips += other.nMergedTrips;
+    nDuplicates += other.nDuplicates;
+    for (String tripId : other.tripIds) {
+      if (!tripIds.add(tripId))
+        nDuplicates++;
+    }
+  }
+
   /**
    * Set internal latency metric from the timestamp of a feed, relative to current time.
    *
@@ -16,12 +16,10 @@
 package com.kurtraschke.nyctrtproxy.model;
 
 import com.google.transit.realtime.GtfsRealtime;
+import com.kurtraschke.nyctrtproxy.util.TokenInterner;
 import org.apache.commons.lang3.StringUtils;
 import org.onebusaway.gtfs.model.Trip;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * GTFS or realtime trip identifier broken into constituent parts; most importantly, route, direction, and origin-departure time.
  *
@@ -31,8 +29,11 @@ import java.util.regex.Pattern;
  */
 public class NyctTripId {
 
+  private static final TokenInterner _tokens = new TokenInterner();
+
   private int originDepartureTime;
   private String pathId;
+  private String pathRouteId;
   private String directionId;
   private String routeId;
   private String networkId;
@@ -42,6 +43,8 @@ public class NyctTripId {
   }
 
   public String getPathId() {
+    if (pathId == null)
+      pathId = StringUtils.rightPad(pathRouteId, 3, '.') + directionId;
     return pathId;
   }
 
@@ -61,31 +64,86 @@ public class NyctTripId {
   /**
    * Parse a trip ID (from static GTFS or realtime feed) into NyctTripId
    *
+   * IDs look like [prefix_]origin-departure-time[_]route.+direction[network], eg "A20170123WKD_000800_1..S03R". The
+   * result is the same as finding the regex
+   * <code>([A-Z0-9]+_)?(?&lt;originDepartureTime&gt;[0-9-]{6})_?(?&lt;route&gt;[A-Z0-9]+)\.+(?&lt;direction&gt;[NS])(?&lt;network&gt;[A-Z0-9]*)$</code>
+   * in the ID, without a regex or substrings. Route and network IDs are interned.
+   *
    * @param tripId the trip ID
-   * @return parsed trip ID
+   * @return parsed trip ID, or null if the ID does not have this form
    */
-  private static NyctTripId buildFromString(String tripId) {
-    int originDepartureTime;
-    String pathId, routeId, directionId, networkId;
-
-    Pattern pat = Pattern.compile("([A-Z0-9]+_)?(?<originDepartureTime>[0-9-]{6})_?(?<route>[A-Z0-9]+)\\.+(?<direction>[NS])(?<network>[A-Z0-9]*)$");
+  private static NyctTripId buildFromString(CharSequence tripId) {
+    int n = tripId.length();
+    // As with Matcher.find, the match starting furthest left wins, and the prefix is tried before no prefix.
+    for (int i = 0; i < n; i++) {
+      // The prefix can only end with the '_' right after a run of letters and digits.
+      int prefixEnd = skipAlphanumeric(tripId, i, n);
+      if (prefixEnd > i && prefixEnd < n && tripId.charAt(prefixEnd) == '_') {
+        NyctTripId id = buildFromStringAt(tripId, prefixEnd + 1, n);
+        if (id != null)
+          return id;
+      }
+      NyctTripId id = buildFromStringAt(tripId, i, n);
+      if (id != null)
+        return id;
+    }
+    return null;
+  }
 
-    Matcher matcher = pat.matcher(tripId);
+  // Parse an ID without prefix starting at start. Each part has only one possible extent, so there is no backtracking.
+  private static NyctTripId buildFromStringAt(CharSequence tripId, int start, int n) {
+    int routeStart = start + 6;
+    if (routeStart > n)
+      return null;
+    for (int i = start; i < routeStart; i++) {
+      char c = tripId.charAt(i);
+      if (!(c >= '0' && c <= '9') && c != '-')
+        return null;
+    }
+    if (routeStart < n && tripId.charAt(routeStart) == '_')
+      routeStart++;
+    int routeEnd = skipAlphanumeric(tripId, routeStart, n);
+    if (routeEnd == routeStart)
+      return null;
+    int directionIndex = routeEnd;
+    while (directionIndex < n && tripId.charAt(directionIndex) == '.')
+      directionIndex++;
+    if (directionIndex == routeEnd || directionIndex == n)
+      return null;
+    char direction = tripId.charAt(directionIndex);
+    if (direction != 'N' && direction != 'S')
+      return null;
+    int networkStart = directionIndex + 1;
+    if (skipAlphanumeric(tripId, networkStart, n) != n)
+      return null;
 
-    if (matcher.find()) {
-      originDepartureTime = Integer.parseInt(matcher.group("originDepartureTime"), 10);
-      pathId = StringUtils.rightPad(matcher.group("route"), 3, '.') + matcher.group("direction");
-      routeId = matcher.group("route");
-      directionId = matcher.group("direction");
-      networkId = matcher.group("network");
-      if (networkId.length() == 0)
-        networkId = null;
-      return new NyctTripId(originDepartureTime, pathId, routeId, directionId, networkId);
+    String routeId = _tokens.intern(tripId, routeStart, routeEnd);
+    String networkId = networkStart == n ? null : _tokens.intern(tripId, networkStart, n);
+    return new NyctTripId(parseOriginDepartureTime(tripId, start), routeId, routeId, direction == 'N' ? "N" : "S", networkId);
+  }
 
-    } else {
-      return null;
+  private static int skipAlphanumeric(CharSequence s, int start, int end) {
+    int i = start;
+    while (i < end) {
+      char c = s.charAt(i);
+      if (!(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9'))
+        break;
+      i++;
     }
+    return i;
+  }
 
+  // Same result as Integer.parseInt on the six characters [0-9-] at start.
+  private static int parseOriginDepartureTime(CharSequence s, int start) {
+    boolean negative = s.charAt(start) == '-';
+    int value = 0;
+    for (int i = negative ? start + 1 : start; i < start + 6; i++) {
+      char c = s.charAt(i);
+      if (c == '-')
+        throw new NumberFormatException("For input string: \"" + s.subSequence(start, start + 6) + "\"");
+      value = value * 10 + (c - '0');
+    }
+    return negative ? -value : value;
   }
 
   /**
@@ -94,11 +152,13 @@ public class NyctTripId {
    * This is necessary because route W static trip IDs have "N" in the typical 'route' position.
    *
    * @param trip GTFS static trip
-   * @return parsed trip ID
+   * @return parsed trip ID, or null if the trip ID cannot be parsed
    */
   public static NyctTripId buildFromTrip(Trip trip) {
     NyctTripId id = buildFromString(trip.getId().getId());
-    id.routeId = trip.getRoute().getId().getId();
+    if (id == null)
+      return null;
+    id.routeId = _tokens.intern(trip.getRoute().getId().getId());
     return id;
   }
 
@@ -113,13 +173,28 @@ public class NyctTripId {
   public static NyctTripId buildFromTripDescriptor(GtfsRealtime.TripDescriptorOrBuilder td) {
     NyctTripId id = buildFromString(td.getTripId());
     if (td.hasRouteId())
-      id.routeId = td.getRouteId();
+      id.routeId = _tokens.intern(td.getRouteId());
+    return id;
+  }
+
+  /**
+   * Build a NyctTripId from a TripDescriptor, with a route ID to use in place of the TripDescriptor's, eg a static
+   * route ID that the realtime route ID is rewritten to.
+   *
+   * @param td GTFS-RT TripDescriptor
+   * @param routeId route ID
+   * @return parsed trip ID, or null if the trip ID cannot be parsed
+   */
+  public static NyctTripId buildFromTripDescriptor(GtfsRealtime.TripDescriptorOrBuilder td, String routeId) {
+    NyctTripId id = buildFromString(td.getTripId());
+    if (id != null)
+      id.routeId = _tokens.intern(routeId);
     return id;
   }
 
-  private NyctTripId(int originDepartureTime, String pathId, String routeId, String directionId, String networkId) {
+  private NyctTripId(int originDepartureTime, String pathRouteId, String routeId, String directionId, String networkId) {
     this.originDepartureTime = originDepartureTime;
-    this.pathId = pathId;
+    this.pathRouteId = pathRouteId;
     this.routeId = routeId;
     this.directionId = directionId;
     this.networkId = networkId;
@@ -127,7 +202,7 @@ public class NyctTripId {
 
   @Override
   public String toString() {
-    return String.format("%06d_%s", originDepartureTime, pathId);
+    return String.format("%06d_%s", originDepartureTime, getPathId());
   }
 
   /**
@@ -172,6 +247,6 @@ public class NyctTripId {
    */
   public NyctTripId relativeToPreviousDay() {
     int time = originDepartureTime + (24 * 60 * 100);
-    return new NyctTripId(time, pathId, routeId, directionId, networkId);
+    return new NyctTripId(time, pathRouteId, routeId, directionId, networkId);
   }
 }
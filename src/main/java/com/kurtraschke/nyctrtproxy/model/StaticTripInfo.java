@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import org.onebusaway.gtfs.model.Trip;
+
+/**
+ * What matching needs to know about a static trip: its parsed trip ID, a view of its stop times in a
+ * {@link Timetable}, and its {@link StopPattern}.
+ */
+public class StaticTripInfo {
+
+  private final Trip trip;
+  private final NyctTripId parsedTripId;
+  private final Timetable timetable;
+  private final int offset;
+  private final int nStopTimes;
+  private final StopPattern stopPattern;
+
+  /**
+   * @param trip static trip
+   * @param parsedTripId parsed ID of the trip
+   * @param timetable timetable containing the trip's stop times
+   * @param offset index of the trip's first stop time in the timetable
+   * @param nStopTimes number of stop times; must not be zero
+   * @param stopPattern stop pattern of the trip, possibly shared with other trips
+   */
+  public StaticTripInfo(Trip trip, NyctTripId parsedTripId, Timetable timetable, int offset, int nStopTimes,
+                        StopPattern stopPattern) {
+    this.trip = trip;
+    this.parsedTripId = parsedTripId;
+    this.timetable = timetable;
+    this.offset = offset;
+    this.nStopTimes = nStopTimes;
+    this.stopPattern = stopPattern;
+  }
+
+  public Trip getTrip() {
+    return trip;
+  }
+
+  public NyctTripId getParsedTripId() {
+    return parsedTripId;
+  }
+
+  public int getStopTimeCount() {
+    return nStopTimes;
+  }
+
+  /** @return arrival time at the i-th stop of the trip, in seconds into the service day */
+  public int getArrivalTime(int i) {
+    return timetable.getArrivalTime(offset + i);
+  }
+
+  /** @return departure time from the i-th stop of the trip, in seconds into the service day */
+  public int getDepartureTime(int i) {
+    return timetable.getDepartureTime(offset + i);
+  }
+
+  public String getStopId(int i) {
+    return timetable.getStopId(offset + i);
+  }
+
+  /** @return departure time from the first stop, in seconds into the service day */
+  public int getFirstDepartureTime() {
+    return getDepartureTime(0);
+  }
+
+  /** @return arrival time at the last stop, in seconds into the service day */
+  public int getLastArrivalTime() {
+    return getArrivalTime(nStopTimes - 1);
+  }
+
+  public String getLastStopId() {
+    return getStopId(nStopTimes - 1);
+  }
+
+  public StopPattern getStopPattern() {
+    return stopPattern;
+  }
+
+  /**
+   * @param stopId GTFS stop ID
+   * @return true if the trip stops there
+   */
+  public boolean hasStop(String stopId) {
+    return stopPattern.hasStop(stopId);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The ordered stops of a static trip, which trips making the same stops can share. The set of stops and the terminal
+ * stop answer whether a TripUpdate could be for the trip: LazyTripMatcher drops loose candidates whose pattern does
+ * not contain the TripUpdate's last stop.
+ */
+public class StopPattern {
+
+  private final Timetable timetable;
+  private final int[] stops;
+  private final String[] stopIds;
+  private final BitSet stopSet = new BitSet();
+  private final int hash;
+
+  /**
+   * @param timetable timetable containing the trip's stop times
+   * @param offset index of the trip's first stop time in the timetable
+   * @param nStopTimes number of stop times
+   */
+  public StopPattern(Timetable timetable, int offset, int nStopTimes) {
+    this.timetable = timetable;
+    stops = new int[nStopTimes];
+    stopIds = new String[nStopTimes];
+    for (int i = 0; i < nStopTimes; i++) {
+      stops[i] = timetable.getStopIndex(offset + i);
+      stopIds[i] = timetable.getStopId(offset + i);
+      stopSet.set(stops[i]);
+    }
+    hash = Arrays.hashCode(stops);
+  }
+
+  /**
+   * @param stopId GTFS stop ID
+   * @return true if the pattern ends at the stop
+   */
+  public boolean endsAt(String stopId) {
+    return stopIds.length > 0 && stopId.equals(stopIds[stopIds.length - 1]);
+  }
+
+  /**
+   * @param stopId GTFS stop ID
+   * @return true if the pattern stops there
+   */
+  public boolean hasStop(String stopId) {
+    return hasStop(indexOfStop(stopId));
+  }
+
+  /**
+   * @param stopIndex index of a stop, from {@link #indexOfStop}
+   * @return true if the pattern stops there
+   */
+  public boolean hasStop(int stopIndex) {
+    return stopIndex >= 0 && stopSet.get(stopIndex);
+  }
+
+  /**
+   * @param stopId GTFS stop ID
+   * @return index of the stop in the timetable the pattern refers to, or -1 if no trip stops there
+   */
+  public int indexOfStop(String stopId) {
+    return timetable.indexOfStop(stopId);
+  }
+
+  /**
+   * Find a stop in the pattern, starting from where the previous stop was found. The stops of a TripUpdate mostly
+   * follow the pattern in order, so the stop at that position is compared first, and only a stop out of that order
+   * is looked up by ID.
+   *
+   * @param stopId GTFS stop ID
+   * @param from position in the pattern to look at first, usually one past the previous stop found
+   * @return position of the stop in the pattern, or -1 if the pattern does not stop there
+   */
+  public int positionOfStop(String stopId, int from) {
+    if (from < stopIds.length && stopId.equals(stopIds[from]))
+      return from;
+    int stopIndex = indexOfStop(stopId);
+    if (!hasStop(stopIndex))
+      return -1;
+    for (int i = from + 1; i < stops.length; i++) {
+      if (stops[i] == stopIndex)
+        return i;
+    }
+    for (int i = 0; i < from && i < stops.length; i++) {
+      if (stops[i] == stopIndex)
+        return i;
+    }
+    return -1;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof StopPattern))
+      return false;
+    StopPattern other = (StopPattern) o;
+    return timetable == other.timetable && hash == other.hash && Arrays.equals(stops, other.stops);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import org.onebusaway.gtfs.model.StopTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stop times of static trips in columns: arrival and departure seconds and stop indices in shared int arrays, with
+ * each trip's stop times in a contiguous range. Stop IDs are stored once and referred to by index.
+ */
+public class Timetable {
+
+  private final int[] arrivalTimes;
+  private final int[] departureTimes;
+  private final int[] stopIndices;
+  private final String[] stopIds;
+  private final Map<String, Integer> stopIndexById;
+
+  private Timetable(Builder builder) {
+    arrivalTimes = Arrays.copyOf(builder.arrivalTimes, builder.size);
+    departureTimes = Arrays.copyOf(builder.departureTimes, builder.size);
+    stopIndices = Arrays.copyOf(builder.stopIndices, builder.size);
+    stopIds = builder.stopIds.toArray(new String[0]);
+    stopIndexById = builder.stopIndexById;
+  }
+
+  public int getArrivalTime(int i) {
+    return arrivalTimes[i];
+  }
+
+  public int getDepartureTime(int i) {
+    return departureTimes[i];
+  }
+
+  public int getStopIndex(int i) {
+    return stopIndices[i];
+  }
+
+  public String getStopId(int i) {
+    return stopIds[stopIndices[i]];
+  }
+
+  /**
+   * @param stopId GTFS stop ID
+   * @return index of the stop, or -1 if no trip stops there
+   */
+  public int indexOfStop(String stopId) {
+    Integer index = stopIndexById.get(stopId);
+    return index == null ? -1 : index;
+  }
+
+  public static class Builder {
+    private int[] arrivalTimes = new int[1024];
+    private int[] departureTimes = new int[1024];
+    private int[] stopIndices = new int[1024];
+    private int size = 0;
+    private final List<String> stopIds = new ArrayList<>();
+    private final Map<String, Integer> stopIndexById = new HashMap<>();
+
+    /**
+     * @return number of stop times added so far; the offset of the next one
+     */
+    public int size() {
+      return size;
+    }
+
+    public Builder add(StopTime stopTime) {
+      if (size == arrivalTimes.length) {
+        arrivalTimes = Arrays.copyOf(arrivalTimes, size * 2);
+        departureTimes = Arrays.copyOf(departureTimes, size * 2);
+        stopIndices = Arrays.copyOf(stopIndices, size * 2);
+      }
+      String stopId = stopTime.getStop().getId().getId();
+      Integer stopIndex = stopIndexById.get(stopId);
+      if (stopIndex == null) {
+        stopIndex = stopIds.size();
+        stopIds.add(stopId);
+        stopIndexById.put(stopId, stopIndex);
+      }
+      arrivalTimes[size] = stopTime.getArrivalTime();
+      departureTimes[size] = stopTime.getDepartureTime();
+      stopIndices[size] = stopIndex;
+      size++;
+      return this;
+    }
+
+    public Timetable build() {
+      return new Timetable(this);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import com.google.transit.realtime.GtfsRealtime.TripUpdateOrBuilder;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Static trips matched to a feed's RT trips, kept from one poll to the next.
+ *
+ * RT trips are identified by RT trip ID and start date. An assignment made in one poll can be looked up in the next;
+ * assignments for RT trips that are not seen in a poll are dropped when it ends. The routes of a poll may put
+ * assignments concurrently, but a feed's polls do not overlap.
+ */
+public class TripAssignments {
+
+  private Map<String, TripMatchResult> previous = Collections.emptyMap();
+
+  private Map<String, TripMatchResult> current = new ConcurrentHashMap<>();
+
+  /**
+   * @param rtTripId trip ID as it appears in the feed
+   * @param startDate start date of the RT trip
+   * @return key for an RT trip
+   */
+  public static String key(String rtTripId, String startDate) {
+    return rtTripId + "_" + startDate;
+  }
+
+  /**
+   * @param key RT trip key
+   * @param tripUpdate trip update for the RT trip in this poll
+   * @return the match made for the RT trip in the previous poll, applied to tripUpdate, or null if there is none
+   */
+  public TripMatchResult get(String key, TripUpdateOrBuilder tripUpdate) {
+    TripMatchResult result = previous.get(key);
+    if (result == null)
+      return null;
+    return new TripMatchResult(tripUpdate, result.getStatus(), result.getResult(), result.getDelta());
+  }
+
+  /**
+   * Remember a match for the next poll.
+   *
+   * @param key RT trip key
+   * @param result match with a static trip
+   */
+  public void put(String key, TripMatchResult result) {
+    current.put(key, new TripMatchResult(null, result.getStatus(), result.getResult(), result.getDelta()));
+  }
+
+  /**
+   * End a poll. Only assignments made during it are kept.
+   */
+  public void endPoll() {
+    previous = current;
+    current = new ConcurrentHashMap<>();
+  }
+
+  public int size() {
+    return previous.size();
+  }
+}
@@ -34,6 +34,7 @@ public class TripMatchResult implements Comparable<TripMatchResult> {
     BAD_TRIP_ID,
     NO_TRIP_WITH_START_DATE,
     NO_MATCH,
+    DUPLICATE_MATCH,
     MERGED,
     LOOSE_MATCH_ON_OTHER_SERVICE_DATE,
     LOOSE_MATCH_COERCION,
@@ -79,6 +80,10 @@ public class TripMatchResult implements Comparable<TripMatchResult> {
     this.result = result;
   }
 
+  public int getDelta() {
+    return delta;
+  }
+
   public boolean hasResult() {
     return result != null;
   }
@@ -124,9 +129,8 @@ public class TripMatchResult implements Comparable<TripMatchResult> {
   public boolean lastStopMatches() {
     if (!hasResult())
       throw new IllegalArgumentException("Cannot call lastStopMatches on a match result without an ActivatedTrip");
-    String staticStop = result.getStopTimes().get(result.getStopTimes().size() - 1).getStop().getId().getId();
     String rtStop = tripUpdate.getStopTimeUpdate(tripUpdate.getStopTimeUpdateCount() - 1).getStopId();
-    return staticStop.equals(rtStop);
+    return result.getTripInfo().getStopPattern().endsAt(rtStop);
   }
 
   public String getTripId() {
@@ -15,9 +15,8 @@
  */
 package com.kurtraschke.nyctrtproxy.services;
 
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Multimap;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
@@ -28,8 +27,11 @@ import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
 
 import javax.inject.Named;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -48,8 +50,6 @@ public class ActivatedTripMatcher implements TripMatcher {
   // copied from ProxyProvider
   private Set<String> _routesUsingAlternateIdFormat = ImmutableSet.of("SI", "L", "N", "Q", "R", "W", "B", "D");
 
-  private Multimap<String, ActivatedTrip> staticTripsForRoute;
-
   @Inject
   public void setTripActivator(TripActivator tripActivator) {
     _tripActivator = tripActivator;
@@ -62,13 +62,65 @@ public class ActivatedTripMatcher implements TripMatcher {
   }
 
   @Override
-  public TripMatchResult match(TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp) {
-    String routeId = rtid.getRouteId();
-    TripDescriptorOrBuilder tb = tu.getTrip();
-    Stream<ActivatedTrip> candidateTrips = staticTripsForRoute.get(routeId)
-            .stream()
-            .filter(at -> at.getServiceDate().getAsString().equals(tb.getStartDate()));
+  public TripMatchContext initForFeed(Date start, Date end, Set<String> routeIds) {
+    return initForFeed(TripActivator.NO_FEED, start, end, routeIds);
+  }
+
+  @Override
+  public TripMatchContext initForFeed(int feedId, Date start, Date end, Set<String> routeIds) {
+    // The activator's lists are immutable snapshots, so they are kept as they are.
+    ImmutableMap.Builder<String, List<ActivatedTrip>> builder = ImmutableMap.builder();
+    for (String routeId : routeIds)
+      builder.put(routeId, _tripActivator.getActiveTripsForRoute(feedId, start, end, routeId));
+    return new Context(builder.build());
+  }
 
+  private class Context implements TripMatchContext {
+
+    private final Map<String, List<ActivatedTrip>> staticTripsForRoute;
+
+    Context(Map<String, List<ActivatedTrip>> staticTripsForRoute) {
+      this.staticTripsForRoute = staticTripsForRoute;
+    }
+
+    private List<ActivatedTrip> getStaticTrips(String routeId) {
+      return staticTripsForRoute.getOrDefault(routeId, Collections.emptyList());
+    }
+
+    @Override
+    public TripMatchResult match(TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp) {
+      String routeId = rtid.getRouteId();
+      TripDescriptorOrBuilder tb = tu.getTrip();
+      Stream<ActivatedTrip> candidateTrips = getStaticTrips(routeId)
+              .stream()
+              .filter(at -> at.getServiceDate().getAsString().equals(tb.getStartDate()));
+      return bestMatch(tu, rtid, candidateTrips);
+    }
+
+    // The route's trips are grouped by service date once, rather than filtered for each TripUpdate.
+    @Override
+    public List<TripMatchResult> matchAll(String routeId, List<? extends TripUpdateOrBuilder> tripUpdates,
+                                          List<NyctTripId> rtids, long timestamp) {
+      Map<String, List<ActivatedTrip>> tripsByStartDate = getStaticTrips(routeId)
+              .stream()
+              .collect(Collectors.groupingBy(at -> at.getServiceDate().getAsString()));
+      List<TripMatchResult> results = new ArrayList<>(tripUpdates.size());
+      for (int i = 0; i < tripUpdates.size(); i++) {
+        TripUpdateOrBuilder tu = tripUpdates.get(i);
+        NyctTripId rtid = rtids.get(i);
+        if (rtid == null || !routeId.equals(rtid.getRouteId())) {
+          results.add(match(tu, rtid, timestamp));
+          continue;
+        }
+        List<ActivatedTrip> candidateTrips = tripsByStartDate.getOrDefault(tu.getTrip().getStartDate(), Collections.emptyList());
+        results.add(bestMatch(tu, rtid, candidateTrips.stream()));
+      }
+      return results;
+    }
+  }
+
+  private TripMatchResult bestMatch(TripUpdateOrBuilder tu, NyctTripId rtid, Stream<ActivatedTrip> candidateTrips) {
+    String routeId = rtid.getRouteId();
     List<ActivatedTrip> candidateMatches = candidateTrips
             .filter(at -> {
               NyctTripId atid = at.getParsedTripId();
@@ -85,11 +137,4 @@ public class ActivatedTripMatcher implements TripMatcher {
     return new TripMatchResult(tu, TripMatchResult.Status.NO_MATCH);
   }
 
-  @Override
-  public void initForFeed(Date start, Date end, Set<String> routeIds) {
-    staticTripsForRoute = ArrayListMultimap.create();
-    for (ActivatedTrip trip : _tripActivator.getTripsForRangeAndRoutes(start, end, routeIds).collect(Collectors.toList())) {
-      staticTripsForRoute.put(trip.getTrip().getRoute().getId().getId(), trip);
-    }
-  }
 }
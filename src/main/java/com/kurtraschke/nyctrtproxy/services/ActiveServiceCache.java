@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.ProxyModule;
+import com.kurtraschke.nyctrtproxy.model.ActiveServices;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of {@link ActiveServices} by service date, so that matching does not query the calendar for every
+ * TripUpdate.
+ *
+ * Yesterday, today and tomorrow are computed ahead of time. The cache is refreshed every hour, so tomorrow is ready
+ * before midnight and dates before yesterday are evicted. Other dates are computed when first asked for.
+ */
+public class ActiveServiceCache {
+
+  private static final Logger _log = LoggerFactory.getLogger(ActiveServiceCache.class);
+
+  private CalendarServiceData _csd;
+
+  private String _agencyId = "MTA NYCT";
+
+  private ScheduledExecutorService _scheduledExecutorService;
+
+  private ScheduledFuture<?> _refreshTask;
+
+  private Map<AgencyAndId, Integer> _serviceIndex = new HashMap<>();
+
+  private final Map<ServiceDate, ActiveServices> _cache = new ConcurrentHashMap<>();
+
+  @Inject
+  public void setCalendarServiceData(CalendarServiceData csd) {
+    _csd = csd;
+    Map<AgencyAndId, Integer> serviceIndex = new HashMap<>();
+    for (AgencyAndId serviceId : _csd.getServiceIds())
+      serviceIndex.put(serviceId, serviceIndex.size());
+    _serviceIndex = serviceIndex;
+  }
+
+  @Inject(optional = true)
+  public void setAgencyMatchId(@Named("NYCT.gtfsAgency") String agencyid) {
+    _agencyId = agencyid;
+  }
+
+  @Inject(optional = true)
+  public void setScheduledExecutorService(@Named(ProxyModule.TRIP_UPDATES) ScheduledExecutorService service) {
+    _scheduledExecutorService = service;
+  }
+
+  @PostConstruct
+  public void start() {
+    _cache.clear();
+    refresh();
+    if (_scheduledExecutorService != null)
+      _refreshTask = _scheduledExecutorService.scheduleAtFixedRate(this::refresh, 1, 1, TimeUnit.HOURS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_refreshTask != null)
+      _refreshTask.cancel(false);
+  }
+
+  /**
+   * @param sd service date
+   * @return service IDs active on the date
+   */
+  public ActiveServices getActiveServices(ServiceDate sd) {
+    return _cache.computeIfAbsent(sd, this::load);
+  }
+
+  /**
+   * @param serviceId service ID
+   * @return index of the service ID for {@link ActiveServices#isActive(int)}, or -1 if it is not in the calendar
+   */
+  public int getServiceIndex(AgencyAndId serviceId) {
+    Integer i = _serviceIndex.get(serviceId);
+    return i != null ? i : -1;
+  }
+
+  /**
+   * @param time a time
+   * @return the date of the time in the agency's time zone
+   */
+  public ServiceDate getServiceDate(Date time) {
+    Calendar calendar = Calendar.getInstance(getTimeZone());
+    calendar.setTime(time);
+    return new ServiceDate(calendar);
+  }
+
+  // Warm yesterday, today and tomorrow, and drop dates before yesterday.
+  private void refresh() {
+    ServiceDate today = getServiceDate(new Date());
+    ServiceDate yesterday = today.previous();
+    _cache.keySet().removeIf(sd -> sd.compareTo(yesterday) < 0);
+    getActiveServices(yesterday);
+    getActiveServices(today);
+    getActiveServices(today.next());
+  }
+
+  private ActiveServices load(ServiceDate sd) {
+    BitSet active = new BitSet(_serviceIndex.size());
+    for (AgencyAndId serviceId : _csd.getServiceIdsForDate(sd)) {
+      Integer i = _serviceIndex.get(serviceId);
+      if (i != null)
+        active.set(i);
+      else
+        _log.warn("Service {} on {} is not in the calendar", serviceId, sd);
+    }
+    long origin = sd.getAsCalendar(getTimeZone()).getTimeInMillis() / 1000;
+    return new ActiveServices(sd, _serviceIndex, active, origin);
+  }
+
+  private TimeZone getTimeZone() {
+    TimeZone tz = _csd.getTimeZoneForAgencyId(_agencyId);
+    return tz != null ? tz : TimeZone.getDefault();
+  }
+}
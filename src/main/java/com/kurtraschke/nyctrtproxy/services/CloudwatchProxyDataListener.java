@@ -24,7 +24,9 @@ import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
 import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.model.CircuitBreaker;
 import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -106,6 +108,72 @@ public class CloudwatchProxyDataListener implements ProxyDataListener {
     _log.info("time={}, feed={}, nMatchedTrips={}, nAddedTrips={}, nDuplicates={}, nMergedTrips={}", timestamp, feedId, metrics.getMatchedTrips(), metrics.getAddedTrips(), metrics.getDuplicates(), metrics.getMergedTrips());
   }
 
+  @Override
+  public void reportSkippedUpdate(String feedId, long nSkippedTotal) {
+    Date timestamp = new Date();
+    Dimension dim = new Dimension();
+    dim.setName("feed");
+    dim.setValue(feedId);
+    reportMetric(timestamp, dim, "SkippedUpdates", 1, StandardUnit.Count);
+    _log.info("time={}, feed={}, nSkippedUpdates={}", timestamp, feedId, nSkippedTotal);
+  }
+
+  @Override
+  public void reportRetries(String feedId, int nRetries, long waitMillis) {
+    Date timestamp = new Date();
+    Dimension dim = new Dimension();
+    dim.setName("feed");
+    dim.setValue(feedId);
+    reportMetric(timestamp, dim, "Retries", nRetries, StandardUnit.Count);
+    reportMetric(timestamp, dim, "RetryWait", waitMillis, StandardUnit.Milliseconds);
+    _log.info("time={}, feed={}, nRetries={}, retryWaitMillis={}", timestamp, feedId, nRetries, waitMillis);
+  }
+
+  @Override
+  public void reportUpdateCycle(String feedId, long millis) {
+    Date timestamp = new Date();
+    Dimension dim = new Dimension();
+    dim.setName("feed");
+    dim.setValue(feedId);
+    reportMetric(timestamp, dim, "UpdateCycle", millis, StandardUnit.Milliseconds);
+    _log.info("time={}, feed={}, updateCycleMillis={}", timestamp, feedId, millis);
+  }
+
+  @Override
+  public void reportFeedParse(String feedId, int nBytes, long allocatedBytes) {
+    Date timestamp = new Date();
+    Dimension dim = new Dimension();
+    dim.setName("feed");
+    dim.setValue(feedId);
+    reportMetric(timestamp, dim, "FeedSize", nBytes, StandardUnit.Bytes);
+    reportMetric(timestamp, dim, "ParseAllocated", allocatedBytes, StandardUnit.Bytes);
+    _log.debug("time={}, feed={}, bytes={}, allocatedBytes={}", timestamp, feedId, nBytes, allocatedBytes);
+  }
+
+  @Override
+  public void reportCircuitBreakerState(String feedId, CircuitBreaker.State state) {
+    Date timestamp = new Date();
+    Dimension dim = new Dimension();
+    dim.setName("feed");
+    dim.setValue(feedId);
+    reportMetric(timestamp, dim, "CircuitOpen", state == CircuitBreaker.State.CLOSED ? 0 : 1, StandardUnit.Count);
+    _log.info("time={}, feed={}, circuitBreaker={}", timestamp, feedId, state);
+  }
+
+  @Override
+  public void reportExecutorStats(String executorName, int queueDepth, int nTasks, double meanLatencyMillis, double maxLatencyMillis) {
+    Date timestamp = new Date();
+    Dimension dim = new Dimension();
+    dim.setName("executor");
+    dim.setValue(executorName);
+    reportMetric(timestamp, dim, "QueueDepth", queueDepth, StandardUnit.Count);
+    reportMetric(timestamp, dim, "TasksRun", nTasks, StandardUnit.Count);
+    reportMetric(timestamp, dim, "TaskLatencyMean", meanLatencyMillis, StandardUnit.Milliseconds);
+    reportMetric(timestamp, dim, "TaskLatencyMax", maxLatencyMillis, StandardUnit.Milliseconds);
+    _log.info("time={}, executor={}, queueDepth={}, tasks={}, meanLatencyMillis={}, maxLatencyMillis={}",
+            timestamp, executorName, queueDepth, nTasks, meanLatencyMillis, maxLatencyMillis);
+  }
+
   private void reportMatches(Date timestamp, Dimension dim, MatchMetrics metrics) {
     if (_disabled)
       return;
@@ -118,4 +186,20 @@ public class CloudwatchProxyDataListener implements ProxyDataListener {
     _client.putMetricDataAsync(request, _handler);
   }
 
+  private void reportMetric(Date timestamp, Dimension dim, String name, double value, StandardUnit unit) {
+    if (_disabled)
+      return;
+
+    MetricDatum datum = new MetricDatum().withMetricName(name)
+            .withTimestamp(timestamp)
+            .withValue(value)
+            .withUnit(unit)
+            .withDimensions(dim);
+    PutMetricDataRequest request = new PutMetricDataRequest()
+            .withMetricData(datum)
+            .withNamespace(_namespace);
+
+    _client.putMetricDataAsync(request, _handler);
+  }
+
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import javax.inject.Named;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+/**
+ * Provides the blocking HTTP connection pool of one subsystem. Pool sizes are configured per subsystem name with
+ * NYCT.connectionsPerRoute.
+ */
+public class ConnectionManagerProvider implements Provider<HttpClientConnectionManager> {
+
+  private final String _name;
+
+  private int _maxConnectionsPerRoute;
+
+  public ConnectionManagerProvider(String name, int defaultMaxConnectionsPerRoute) {
+    _name = name;
+    _maxConnectionsPerRoute = defaultMaxConnectionsPerRoute;
+  }
+
+  @Inject(optional = true)
+  public void setConnectionsPerRoute(@Named("NYCT.connectionsPerRoute") String json) {
+    Type type = new TypeToken<Map<String, Integer>>(){}.getType();
+    Map<String, Integer> connectionsPerRoute = new Gson().fromJson(json, type);
+    _maxConnectionsPerRoute = connectionsPerRoute.getOrDefault(_name, _maxConnectionsPerRoute);
+  }
+
+  @Override
+  public HttpClientConnectionManager get() {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setDefaultMaxPerRoute(_maxConnectionsPerRoute);
+    connectionManager.setMaxTotal(Math.max(connectionManager.getMaxTotal(), _maxConnectionsPerRoute));
+    return connectionManager;
+  }
+}
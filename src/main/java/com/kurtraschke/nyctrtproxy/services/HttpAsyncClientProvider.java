@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.common.reflect.TypeToken;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+
+import javax.inject.Named;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+/**
+ * Non-blocking HTTP client of one subsystem, used when feeds are fetched asynchronously (NYCT.asyncFetch).
+ *
+ * All requests are multiplexed over a small number of I/O threads; responses are buffered in memory
+ * and handed back through callbacks. Each subsystem has its own client and so its own connection pool, sized with
+ * NYCT.connectionsPerRoute.
+ */
+public class HttpAsyncClientProvider implements Provider<CloseableHttpAsyncClient> {
+
+  private final String _name;
+
+  private int _ioThreads = 1;
+
+  private int _maxConnectionsPerRoute;
+
+  public HttpAsyncClientProvider(String name, int defaultMaxConnectionsPerRoute) {
+    _name = name;
+    _maxConnectionsPerRoute = defaultMaxConnectionsPerRoute;
+  }
+
+  @Inject(optional = true)
+  public void setIoThreads(@Named("NYCT.ioThreads") int ioThreads) {
+    _ioThreads = ioThreads;
+  }
+
+  @Inject(optional = true)
+  public void setConnectionsPerRoute(@Named("NYCT.connectionsPerRoute") String json) {
+    Type type = new TypeToken<Map<String, Integer>>(){}.getType();
+    Map<String, Integer> connectionsPerRoute = new Gson().fromJson(json, type);
+    _maxConnectionsPerRoute = connectionsPerRoute.getOrDefault(_name, _maxConnectionsPerRoute);
+  }
+
+  @Override
+  public CloseableHttpAsyncClient get() {
+    IOReactorConfig config = IOReactorConfig.custom()
+            .setIoThreadCount(_ioThreads)
+            .build();
+    CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+            .setDefaultIOReactorConfig(config)
+            .setMaxConnPerRoute(_maxConnectionsPerRoute)
+            .setMaxConnTotal(_maxConnectionsPerRoute * 2)
+            .setThreadFactory(new ThreadFactoryBuilder().setNameFormat(_name + "-io-%d").build())
+            .build();
+    client.start();
+    return client;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduled thread pool that tracks how late its tasks start, and periodically reports that along with its queue
+ * depth to a ProxyDataListener.
+ *
+ * A task's latency is the time between when it was due to run and when a thread picked it up, so it grows when the
+ * pool is saturated.
+ */
+public class InstrumentedScheduledExecutor extends ScheduledThreadPoolExecutor {
+
+  private final String _name;
+
+  private final ProxyDataListener _listener;
+
+  private int _nTasks = 0;
+
+  private long _totalLatencyNanos = 0;
+
+  private long _maxLatencyNanos = 0;
+
+  /**
+   * @param name name of the executor; also used to name its threads
+   * @param threads number of threads
+   * @param listener listener for metrics, or null
+   * @param reportInterval seconds between metrics reports
+   */
+  public InstrumentedScheduledExecutor(String name, int threads, ProxyDataListener listener, int reportInterval) {
+    super(threads, new ThreadFactoryBuilder().setNameFormat(name + "-%d").build());
+    _name = name;
+    _listener = listener;
+    if (listener != null && reportInterval > 0)
+      scheduleAtFixedRate(this::report, reportInterval, reportInterval, TimeUnit.SECONDS);
+  }
+
+  public String getName() {
+    return _name;
+  }
+
+  @Override
+  protected void beforeExecute(Thread t, Runnable r) {
+    super.beforeExecute(t, r);
+    if (r instanceof Delayed) {
+      long latency = Math.max(0, -((Delayed) r).getDelay(TimeUnit.NANOSECONDS));
+      synchronized (this) {
+        _nTasks++;
+        _totalLatencyNanos += latency;
+        _maxLatencyNanos = Math.max(_maxLatencyNanos, latency);
+      }
+    }
+  }
+
+  // Report and reset the task latency seen since the last report.
+  private void report() {
+    int nTasks;
+    long totalLatency, maxLatency;
+    synchronized (this) {
+      nTasks = _nTasks;
+      totalLatency = _totalLatencyNanos;
+      maxLatency = _maxLatencyNanos;
+      _nTasks = 0;
+      _totalLatencyNanos = 0;
+      _maxLatencyNanos = 0;
+    }
+    double meanLatencyMillis = nTasks > 0 ? totalLatency / 1e6 / nTasks : 0;
+    _listener.reportExecutorStats(_name, getQueueDepth(), nTasks, meanLatencyMillis, maxLatency / 1e6);
+  }
+
+  /**
+   * @return number of tasks that are due to run but waiting for a thread. Tasks scheduled for later are not counted.
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (Runnable r : getQueue()) {
+      if (!(r instanceof Delayed) || ((Delayed) r).getDelay(TimeUnit.NANOSECONDS) <= 0)
+        depth++;
+    }
+    return depth;
+  }
+}
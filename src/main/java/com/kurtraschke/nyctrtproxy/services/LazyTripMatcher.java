@@ -19,53 +19,56 @@ import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.transit.realtime.GtfsRealtime;
 import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
+import com.kurtraschke.nyctrtproxy.model.ActiveServices;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.StaticTripInfo;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
-import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.Route;
-import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
-import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Named;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of trip matching that allows a looser matching.
  *
  * Trips can be coerced, ie the RT origin-departure time is slightly later than the matched static time,
- * or they can be for a different service day. We do not test that the stops in the RT and static trip
- * match, since results of this match may need to be merged.
+ * or they can be for a different service day. Loose matches must stop at the last stop of the RT trip. We do not
+ * test that it is the last stop of the static trip, since results of this match may need to be merged.
  *
  * @author Simon Jacobs
  */
-public class LazyTripMatcher implements TripMatcher {
+public class LazyTripMatcher implements TripMatcher, TripMatchContext {
 
   private int _lateTripLimitSec = 3600; // 1 hour
   private String _agencyId = "MTA NYCT";
-  private GtfsRelationalDao _dao;
-  private CalendarServiceData _csd;
+  private StaticTripIndex _index;
+  private ActiveServiceCache _activeServiceCache;
   private boolean _looseMatchDisabled = false;
 
   private static final Logger _log = LoggerFactory.getLogger(LazyTripMatcher.class);
 
   @Inject
-  public void setGtfsRelationalDao(GtfsRelationalDao dao) {
-    _dao = dao;
+  public void setStaticTripIndex(StaticTripIndex index) {
+    _index = index;
   }
 
   @Inject
-  public void setCalendarServiceData(CalendarServiceData csd) {
-    _csd = csd;
+  public void setActiveServiceCache(ActiveServiceCache activeServiceCache) {
+    _activeServiceCache = activeServiceCache;
   }
-  
+
   @Inject(optional = true)
   public void setAgencyMatchId(@Named("NYCT.gtfsAgency") String agencyid) {
 	  _agencyId = agencyid;
@@ -81,6 +84,15 @@ public class LazyTripMatcher implements TripMatcher {
     _looseMatchDisabled = looseMatchDisabled;
   }
 
+  /**
+   * Match a TripUpdate to a static GTFS trip, if possible. This matcher needs no initialization, so this can be
+   * called directly as well as through a context.
+   *
+   * @param tu TripUpdate (or TripUpdate.Builder) to be matched
+   * @param id parsed ID of TripUpdate
+   * @param timestamp time of feed in seconds
+   * @return results of match
+   */
   @Override
   public TripMatchResult match(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId id, long timestamp) {
     if (id == null)
@@ -92,40 +104,128 @@ public class LazyTripMatcher implements TripMatcher {
 
     // Look back to previous day. Static IDs have a 26-hour service period, RT IDs are relative to midnight.
     // Latest trip departure is 26:02:00, so this technically allows us to consider trips that are up to 58min late (and most likely later.)
-    if (id.getOriginDepartureTime() < 3 * 60 * 100)
+    if (lookBack(id))
       foundTripWithStartTime |= addCandidates(tu, id.relativeToPreviousDay(), sd.previous(), candidates);
 
+    return bestCandidate(tu, candidates, foundTripWithStartTime);
+  }
+
+  /**
+   * Match all TripUpdates of a route. Gives the same results as {@link #match}, but the service dates are looked up
+   * once, and candidates for loose matches come from one pass over the route's static trips in order of departure,
+   * alongside the TripUpdates in order of origin-departure time.
+   */
+  @Override
+  public List<TripMatchResult> matchAll(String routeId, List<? extends GtfsRealtime.TripUpdateOrBuilder> tripUpdates,
+                                       List<NyctTripId> rtids, long timestamp) {
+    ServiceDate sd = new ServiceDate(new Date(timestamp * 1000));
+    ServiceDate previousSd = sd.previous();
+    ActiveServices services = _activeServiceCache.getActiveServices(sd);
+    ActiveServices previousServices = _activeServiceCache.getActiveServices(previousSd);
+
+    int n = tripUpdates.size();
+    TripMatchResult[] results = new TripMatchResult[n];
+    List<Set<TripMatchResult>> candidates = new ArrayList<>(n);
+    boolean[] foundTripWithStartTime = new boolean[n];
+    List<Query> queries = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      GtfsRealtime.TripUpdateOrBuilder tu = tripUpdates.get(i);
+      candidates.add(Sets.newHashSet());
+      NyctTripId id = rtids.get(i);
+      if (id == null || !routeId.equals(id.getRouteId()) || !routeId.equals(tu.getTrip().getRouteId())) {
+        results[i] = match(tu, id, timestamp);
+        continue;
+      }
+      queries.add(new Query(i, id, sd, services));
+      if (lookBack(id))
+        queries.add(new Query(i, id.relativeToPreviousDay(), previousSd, previousServices));
+    }
+
+    queries.sort(Comparator.comparingDouble(q -> q.rtStart));
+    Map<String, List<Query>> queriesByDirection = queries.stream().collect(Collectors.groupingBy(q -> q.id.getDirection()));
+    for (Map.Entry<String, List<Query>> e : queriesByDirection.entrySet()) {
+      // Static trips from lo (inclusive) to hi (exclusive) start in the loose match window of the current query.
+      List<StaticTripInfo> trips = _index.getTripsForRouteDirection(routeId, e.getKey());
+      int lo = 0, hi = 0;
+      for (Query q : e.getValue()) {
+        List<StaticTripInfo> window = Collections.emptyList();
+        if (!_looseMatchDisabled) {
+          while (hi < trips.size() && trips.get(hi).getFirstDepartureTime() <= maxStart(q.rtStart))
+            hi++;
+          while (lo < hi && trips.get(lo).getFirstDepartureTime() < minStart(q.rtStart))
+            lo++;
+          window = trips.subList(lo, hi);
+        }
+        foundTripWithStartTime[q.index] |= addCandidates(tripUpdates.get(q.index), q.id, q.sd, q.services, window, candidates.get(q.index));
+      }
+    }
+
+    for (int i = 0; i < n; i++) {
+      if (results[i] == null)
+        results[i] = bestCandidate(tripUpdates.get(i), candidates.get(i), foundTripWithStartTime[i]);
+    }
+    return Arrays.asList(results);
+  }
+
+  @Override
+  public TripMatchContext initForFeed(Date start, Date end, Set<String> routeIds) {
+    return this;
+  }
+
+  private static boolean lookBack(NyctTripId id) {
+    return id.getOriginDepartureTime() < 3 * 60 * 100;
+  }
+
+  private static TripMatchResult bestCandidate(GtfsRealtime.TripUpdateOrBuilder tu, Set<TripMatchResult> candidates, boolean foundTripWithStartTime) {
     if (candidates.isEmpty())
       return new TripMatchResult(tu, foundTripWithStartTime ? TripMatchResult.Status.NO_MATCH : TripMatchResult.Status.NO_TRIP_WITH_START_DATE);
     else
       return Collections.max(candidates); // get BEST match. see TripMatchResult::compareTo
   }
 
-  @Override
-  public void initForFeed(Date start, Date end, Set<String> routeIds) {
-    // do nothing
+  // Bounds on the first departure of static trips the RT trip could be a loose match for. rtStart is the RT
+  // origin-departure time in seconds. Wider than the exact test below, which is done for each trip.
+  private int minStart(double rtStart) {
+    return (int) Math.floor(rtStart - _lateTripLimitSec);
+  }
+
+  private int maxStart(double rtStart) {
+    return (int) Math.floor(rtStart) + 1;
   }
 
   // Find possible match candidates among static trips.
   // return true if trips were found with start date
   private boolean addCandidates(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId id, ServiceDate sd, Set<TripMatchResult> candidates) {
+    String routeId = tu.getTrip().getRouteId();
+    if (!routeId.equals(id.getRouteId()))
+      return false;
+    double rtStart = ((double) id.getOriginDepartureTime()) * 0.6;
+    List<StaticTripInfo> window = _looseMatchDisabled ? Collections.emptyList()
+            : _index.getTripsForStartRange(routeId, id.getDirection(), minStart(rtStart), maxStart(rtStart));
+    return addCandidates(tu, id, sd, _activeServiceCache.getActiveServices(sd), window, candidates);
+  }
+
+  // Only trips that could match are checked: the same origin-departure time (strict match), or a first departure in
+  // the loose match window.
+  private boolean addCandidates(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId id, ServiceDate sd, ActiveServices services,
+                                List<StaticTripInfo> window, Set<TripMatchResult> candidates) {
 
     boolean found = false;
-    Route r = _dao.getRouteForId(new AgencyAndId(_agencyId, tu.getTrip().getRouteId()));
-    Set<AgencyAndId> serviceIds = _csd.getServiceIdsForDate(sd);
+    // Last stop of the TU, resolved once for all candidates, which share the index's timetable. A stop that is not in
+    // the static GTFS (-1) tells nothing about the candidates, so they are not pruned by it.
+    int lastStop = tu.getStopTimeUpdateCount() > 0
+            ? _index.indexOfStop(tu.getStopTimeUpdate(tu.getStopTimeUpdateCount() - 1).getStopId()) : -1;
+    Set<StaticTripInfo> trips = new LinkedHashSet<>(_index.getTripsForOriginDepartureTime(id.getRouteId(), id.getDirection(), id.getOriginDepartureTime()));
+    trips.addAll(window);
 
-    // We check through all trips. This could be easily restricted, but performance has not been a problem.
-    for (Trip trip : _dao.getTripsForRoute(r)) {
-      NyctTripId atid = NyctTripId.buildFromTrip(trip);
-      if (!atid.routeDirMatch(id))
-        continue;
-      List<StopTime> stopTimes = _dao.getStopTimesForTrip(trip);
-      int start = stopTimes.get(0).getDepartureTime(); // in sec into day.
-      int end = stopTimes.get(stopTimes.size()-1).getArrivalTime();
-      boolean onServiceDay = serviceIds.contains(trip.getServiceId());
+    for (StaticTripInfo info : trips) {
+      Trip trip = info.getTrip();
+      NyctTripId atid = info.getParsedTripId();
+      int start = info.getFirstDepartureTime(); // in sec into day.
+      boolean onServiceDay = services.isActive(trip.getServiceId());
       if (atid.strictMatch(id) && onServiceDay) {
         found = true;
-        candidates.add(new TripMatchResult(tu, new ActivatedTrip(sd, trip, stopTimes)));
+        candidates.add(new TripMatchResult(tu, new ActivatedTrip(sd, info)));
         continue;
       }
       // loose match, RT trip could be late relative to static trip
@@ -133,11 +233,13 @@ public class LazyTripMatcher implements TripMatcher {
       if (!_looseMatchDisabled && delta >= 0 && delta < _lateTripLimitSec) {
         found &= onServiceDay;
 
-        ActivatedTrip at = new ActivatedTrip(sd, trip, stopTimes);
-        TripMatchResult result = TripMatchResult.looseMatch(tu, at, delta, onServiceDay);
-        // disable trips that are coerced AND on a different day
-        if (onServiceDay || delta == 0)
-          candidates.add(result);
+        // disable trips that are coerced AND on a different day. Also prune trips that could never keep the match (see
+        // TripMatchResult::lastStopMatches): the static trip's stop pattern does not contain the RT trip's last stop.
+        // This is a membership test on each candidate's pattern; there is no index of patterns.
+        if ((onServiceDay || delta == 0) && (lastStop < 0 || info.getStopPattern().hasStop(lastStop))) {
+          ActivatedTrip at = new ActivatedTrip(sd, info);
+          candidates.add(TripMatchResult.looseMatch(tu, at, delta, onServiceDay));
+        }
 
       }
     }
@@ -145,4 +247,20 @@ public class LazyTripMatcher implements TripMatcher {
     return found;
   }
 
+  // One service day on which to look for matches for a TripUpdate.
+  private static class Query {
+    final int index;
+    final NyctTripId id;
+    final ServiceDate sd;
+    final ActiveServices services;
+    final double rtStart;
+
+    Query(int index, NyctTripId id, ServiceDate sd, ActiveServices services) {
+      this.index = index;
+      this.id = id;
+      this.sd = sd;
+      this.services = services;
+      this.rtStart = ((double) id.getOriginDepartureTime()) * 0.6;
+    }
+  }
 }
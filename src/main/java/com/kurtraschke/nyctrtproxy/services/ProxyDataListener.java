@@ -15,6 +15,7 @@
  */
 package com.kurtraschke.nyctrtproxy.services;
 
+import com.kurtraschke.nyctrtproxy.model.CircuitBreaker;
 import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
 
 /**
@@ -25,4 +26,10 @@ import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
 public interface ProxyDataListener {
   void reportMatchesForRoute(String routeId, MatchMetrics metrics);
   void reportMatchesForFeed(String feedId, MatchMetrics metrics);
+  void reportSkippedUpdate(String feedId, long nSkippedTotal);
+  void reportRetries(String feedId, int nRetries, long waitMillis);
+  void reportUpdateCycle(String feedId, long millis);
+  void reportFeedParse(String feedId, int nBytes, long allocatedBytes);
+  void reportCircuitBreakerState(String feedId, CircuitBreaker.State state);
+  void reportExecutorStats(String executorName, int queueDepth, int nTasks, double meanLatencyMillis, double maxLatencyMillis);
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import javax.inject.Named;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Provides the executor of one subsystem (trip updates or alerts), so that work in one subsystem cannot hold up
+ * another. Thread counts are configured per executor name with NYCT.executorThreads.
+ */
+public class ScheduledExecutorProvider implements Provider<ScheduledExecutorService> {
+
+  private final String _name;
+
+  private int _threads;
+
+  private int _metricsInterval = 60;
+
+  private ProxyDataListener _listener;
+
+  public ScheduledExecutorProvider(String name, int defaultThreads) {
+    _name = name;
+    _threads = defaultThreads;
+  }
+
+  @Inject(optional = true)
+  public void setThreadsByExecutor(@Named("NYCT.executorThreads") String json) {
+    Type type = new TypeToken<Map<String, Integer>>(){}.getType();
+    Map<String, Integer> threadsByExecutor = new Gson().fromJson(json, type);
+    _threads = threadsByExecutor.getOrDefault(_name, _threads);
+  }
+
+  @Inject(optional = true)
+  public void setMetricsInterval(@Named("NYCT.executorMetricsInterval") int metricsInterval) {
+    _metricsInterval = metricsInterval;
+  }
+
+  @Inject(optional = true)
+  public void setListener(ProxyDataListener listener) {
+    _listener = listener;
+  }
+
+  @Override
+  public ScheduledExecutorService get() {
+    return new InstrumentedScheduledExecutor(_name, _threads, _listener, _metricsInterval);
+  }
+}
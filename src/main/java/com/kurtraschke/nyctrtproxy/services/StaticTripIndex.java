@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.StaticTripInfo;
+import com.kurtraschke.nyctrtproxy.model.StopPattern;
+import com.kurtraschke.nyctrtproxy.model.Timetable;
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Named;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static trips indexed by route and direction, for LazyTripMatcher, plus a {@link StaticTripInfo} for every trip of
+ * the agency. Trips of other agencies, trips whose ID cannot be parsed, and trips without stop times are left out.
+ * The stop times of all trips are held in one {@link Timetable}, and trips making the same stops share a
+ * {@link StopPattern}. After indexing, the DAO's own stop times are released unless NYCT.releaseStopTimes is false,
+ * so the index can only be started once.
+ *
+ * Within a route and direction, trips can be looked up by the origin-departure time in their trip ID (a hash
+ * lookup), or by a range of first departure times (a binary search), so matching a TripUpdate does not scan every
+ * trip on its route.
+ */
+public class StaticTripIndex {
+
+  private static final Logger _log = LoggerFactory.getLogger(StaticTripIndex.class);
+
+  private GtfsRelationalDao _dao;
+
+  private String _agencyId = "MTA NYCT";
+
+  private Timetable _timetable = new Timetable.Builder().build();
+
+  private Map<Trip, StaticTripInfo> _tripInfo = Collections.emptyMap();
+
+  private Map<String, RouteDirection> _index = Collections.emptyMap();
+
+  private boolean _releaseStopTimes = true;
+
+  @Inject
+  public void setGtfsRelationalDao(GtfsRelationalDao dao) {
+    _dao = dao;
+  }
+
+  @Inject(optional = true)
+  public void setAgencyMatchId(@Named("NYCT.gtfsAgency") String agencyid) {
+    _agencyId = agencyid;
+  }
+
+  @Inject(optional = true)
+  public void setReleaseStopTimes(@Named("NYCT.releaseStopTimes") boolean releaseStopTimes) {
+    _releaseStopTimes = releaseStopTimes;
+  }
+
+  @PostConstruct
+  public void start() {
+    Timetable.Builder timetableBuilder = new Timetable.Builder();
+    List<Trip> trips = new ArrayList<>();
+    List<NyctTripId> parsedTripIds = new ArrayList<>();
+    List<Integer> offsets = new ArrayList<>();
+    for (Trip trip : _dao.getAllTrips()) {
+      if (!trip.getRoute().getId().getAgencyId().equals(_agencyId))
+        continue;
+      NyctTripId id = NyctTripId.buildFromTrip(trip);
+      if (id == null) {
+        _log.warn("Not indexing trip {} with unparseable ID", trip.getId());
+        continue;
+      }
+      List<StopTime> stopTimes = _dao.getStopTimesForTrip(trip);
+      if (stopTimes.isEmpty()) {
+        _log.warn("Not indexing trip {} without stop times", trip.getId());
+        continue;
+      }
+      trips.add(trip);
+      parsedTripIds.add(id);
+      offsets.add(timetableBuilder.size());
+      stopTimes.forEach(timetableBuilder::add);
+    }
+    offsets.add(timetableBuilder.size());
+    Timetable timetable = timetableBuilder.build();
+
+    Map<Trip, StaticTripInfo> tripInfo = new HashMap<>();
+    Map<String, List<StaticTripInfo>> tripsByKey = new HashMap<>();
+    Map<StopPattern, StopPattern> stopPatterns = new HashMap<>();
+    for (int i = 0; i < trips.size(); i++) {
+      Trip trip = trips.get(i);
+      int offset = offsets.get(i), nStopTimes = offsets.get(i + 1) - offsets.get(i);
+      StopPattern stopPattern = stopPatterns.computeIfAbsent(new StopPattern(timetable, offset, nStopTimes), p -> p);
+      NyctTripId id = parsedTripIds.get(i);
+      StaticTripInfo info = new StaticTripInfo(trip, id, timetable, offset, nStopTimes, stopPattern);
+      tripInfo.put(trip, info);
+      tripsByKey.computeIfAbsent(key(id.getRouteId(), id.getDirection()), k -> new ArrayList<>()).add(info);
+    }
+
+    Map<String, RouteDirection> index = new HashMap<>();
+    for (Map.Entry<String, List<StaticTripInfo>> e : tripsByKey.entrySet()) {
+      List<StaticTripInfo> infos = e.getValue();
+      infos.sort(Comparator.comparingInt(StaticTripInfo::getFirstDepartureTime));
+      index.put(e.getKey(), new RouteDirection(infos));
+    }
+    _timetable = timetable;
+    _tripInfo = tripInfo;
+    _index = index;
+    _log.info("Indexed {} trips with {} stop patterns on {} routes/directions", tripInfo.size(), stopPatterns.size(), index.size());
+
+    // Once indexed, the DAO's StopTime objects are not needed: matching and TripActivator use the timetable.
+    if (_releaseStopTimes && _dao instanceof GtfsRelationalDaoImpl) {
+      GtfsRelationalDaoImpl dao = (GtfsRelationalDaoImpl) _dao;
+      dao.clearAllEntitiesForType(StopTime.class);
+      dao.clearAllCaches();
+      _log.info("Released stop times from the GTFS DAO");
+    }
+  }
+
+  /**
+   * @param trip static trip
+   * @return precomputed info for the trip, or null if the trip is not indexed
+   */
+  public StaticTripInfo getTripInfo(Trip trip) {
+    return _tripInfo.get(trip);
+  }
+
+  /**
+   * @param stopId GTFS stop ID
+   * @return index of the stop in the timetable shared by indexed trips, for {@link StopPattern#hasStop(int)}, or -1
+   *   if no trip stops there
+   */
+  public int indexOfStop(String stopId) {
+    return _timetable.indexOfStop(stopId);
+  }
+
+  /**
+   * @param routeId static route ID
+   * @param direction direction, N or S
+   * @return trips on the route and direction, in order of first departure
+   */
+  public List<StaticTripInfo> getTripsForRouteDirection(String routeId, String direction) {
+    RouteDirection rd = _index.get(key(routeId, direction));
+    return rd == null ? Collections.emptyList() : Arrays.asList(rd.trips);
+  }
+
+  /**
+   * @param routeId static route ID
+   * @param direction direction, N or S
+   * @param originDepartureTime origin-departure time in hundredths of a minute, as in the trip ID
+   * @return trips on the route and direction whose ID has the given origin-departure time
+   */
+  public List<StaticTripInfo> getTripsForOriginDepartureTime(String routeId, String direction, int originDepartureTime) {
+    RouteDirection rd = _index.get(key(routeId, direction));
+    return rd == null ? Collections.emptyList() : rd.byOriginDepartureTime.get(originDepartureTime);
+  }
+
+  /**
+   * @param routeId static route ID
+   * @param direction direction, N or S
+   * @param minStart lower bound on first departure time, in seconds into the service day, inclusive
+   * @param maxStart upper bound on first departure time, inclusive
+   * @return trips on the route and direction with a first departure in the range, in order of first departure
+   */
+  public List<StaticTripInfo> getTripsForStartRange(String routeId, String direction, int minStart, int maxStart) {
+    RouteDirection rd = _index.get(key(routeId, direction));
+    if (rd == null || minStart > maxStart)
+      return Collections.emptyList();
+    int from = lowerBound(rd.startTimes, minStart);
+    int to = lowerBound(rd.startTimes, maxStart + 1);
+    return Arrays.asList(rd.trips).subList(from, to);
+  }
+
+  // First index whose value is >= key.
+  private static int lowerBound(int[] values, int key) {
+    int lo = 0, hi = values.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (values[mid] < key)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  private static String key(String routeId, String direction) {
+    return routeId + "." + direction;
+  }
+
+  private static class RouteDirection {
+    final StaticTripInfo[] trips;
+    final int[] startTimes;
+    final ImmutableListMultimap<Integer, StaticTripInfo> byOriginDepartureTime;
+
+    RouteDirection(List<StaticTripInfo> sortedTrips) {
+      trips = sortedTrips.toArray(new StaticTripInfo[0]);
+      startTimes = new int[trips.length];
+      ImmutableListMultimap.Builder<Integer, StaticTripInfo> byTime = ImmutableListMultimap.builder();
+      for (int i = 0; i < trips.length; i++) {
+        startTimes[i] = trips[i].getFirstDepartureTime();
+        byTime.put(trips[i].getParsedTripId().getOriginDepartureTime(), trips[i]);
+      }
+      byOriginDepartureTime = byTime.build();
+    }
+  }
+}
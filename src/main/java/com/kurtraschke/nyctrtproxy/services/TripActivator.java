@@ -15,22 +15,29 @@
  */
 package com.kurtraschke.nyctrtproxy.services;
 
-import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
+import com.kurtraschke.nyctrtproxy.model.ActiveServices;
+import com.kurtraschke.nyctrtproxy.model.StaticTripInfo;
 import com.vividsolutions.jts.index.strtree.SIRtree;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.IntSummaryStatistics;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 import javax.annotation.PostConstruct;
@@ -40,15 +47,32 @@ import javax.inject.Named;
 /**
  * Find currently-active trips for a given time. (Only needed for ActivatedTripMatcher)
  *
+ * Trips are held in an interval tree for each route, so a query only visits the trips of the routes asked for.
+ * ActivatedTrips are reused between queries on the same service date. ActivatedTripMatcher polls the same routes
+ * with a range moving forward, so it uses {@link #getActiveTripsForRoute}, which updates the previous result.
+ *
  * @author kurt
  */
 public class TripActivator {
 
-  private CalendarServiceData _csd;
+  /**
+   * Feed ID for callers of {@link #getActiveTripsForRoute} that are not matching a feed.
+   */
+  public static final int NO_FEED = -1;
 
   private GtfsRelationalDao _dao;
 
-  private SIRtree tripTimesTree;
+  private StaticTripIndex _staticTripIndex;
+
+  private ActiveServiceCache _activeServiceCache;
+
+  private Map<String, SIRtree> _tripTimesByRoute = Collections.emptyMap();
+
+  private Map<String, List<ScheduledTrip>> _tripsByRoute = Collections.emptyMap();
+
+  private final Map<ServiceDate, Map<StaticTripInfo, ActivatedTrip>> _activatedTrips = new ConcurrentHashMap<>();
+
+  private final Map<WindowKey, RouteWindow> _windows = new ConcurrentHashMap<>();
 
   private int maxLookback;
   
@@ -56,11 +80,6 @@ public class TripActivator {
   
   private static final Logger _log = LoggerFactory.getLogger(TripActivator.class);
 
-  @Inject
-  public void setCalendarServiceData(CalendarServiceData csd) {
-    _csd = csd;
-  }
-  
   @Inject(optional = true)
   public void setAgencyMatchId(@Named("NYCT.gtfsAgency") String agencyid) {
 	  _agencyId = agencyid;
@@ -72,79 +91,273 @@ public class TripActivator {
     _dao = dao;
   }
 
-  @PostConstruct
-  public void start() {
-    tripTimesTree = new SIRtree();
-
-    _dao.getAllTrips().forEach(trip -> {
-      IntSummaryStatistics iss = _dao.getStopTimesForTrip(trip)
-              .stream()
-              .flatMapToInt(st -> {
-                IntStream.Builder sb = IntStream.builder();
-
-                if (st.isArrivalTimeSet()) {
-                  sb.add(st.getArrivalTime());
-                }
-
-                if (st.isDepartureTimeSet()) {
-                  sb.add(st.getDepartureTime());
-                }
-
-                return sb.build();
-              }).summaryStatistics();
-
-      tripTimesTree.insert(iss.getMin(), iss.getMax(), trip);
-    });
-    tripTimesTree.build();
+  @Inject
+  public void setStaticTripIndex(StaticTripIndex staticTripIndex) {
+    _staticTripIndex = staticTripIndex;
+  }
 
-    maxLookback = getMaxLookback();
+  @Inject
+  public void setActiveServiceCache(ActiveServiceCache activeServiceCache) {
+    _activeServiceCache = activeServiceCache;
   }
 
-  private int getMaxLookback() {
-    return (int) Math.ceil(_dao.getAllStopTimes().stream()
-            .flatMapToInt(st -> {
-              IntStream.Builder sb = IntStream.builder();
+  @PostConstruct
+  public void start() {
+    Map<String, SIRtree> tripTimesByRoute = new HashMap<>();
+    Map<String, List<ScheduledTrip>> tripsByRoute = new HashMap<>();
 
-              if (st.isArrivalTimeSet()) {
-                sb.add(st.getArrivalTime());
-              }
+    int maxTime = 0;
+    for (Trip trip : _dao.getAllTrips()) {
+      // Only trips the index could parse can be matched. Their times come from the index, since the DAO's stop
+      // times may have been released.
+      StaticTripInfo info = _staticTripIndex.getTripInfo(trip);
+      if (info == null)
+        continue;
+      int minTripTime = Integer.MAX_VALUE, maxTripTime = Integer.MIN_VALUE;
+      for (int i = 0; i < info.getStopTimeCount(); i++) {
+        for (int time : new int[] { info.getArrivalTime(i), info.getDepartureTime(i) }) {
+          // times that are not set are negative
+          if (time >= 0) {
+            minTripTime = Math.min(minTripTime, time);
+            maxTripTime = Math.max(maxTripTime, time);
+          }
+        }
+      }
+      if (minTripTime > maxTripTime)
+        continue;
+      maxTime = Math.max(maxTime, maxTripTime);
 
-              if (st.isDepartureTimeSet()) {
-                sb.add(st.getDepartureTime());
-              }
+      ScheduledTrip scheduledTrip = new ScheduledTrip(info,
+              _activeServiceCache.getServiceIndex(trip.getServiceId()), minTripTime, maxTripTime);
+      String routeId = trip.getRoute().getId().getId();
+      tripTimesByRoute.computeIfAbsent(routeId, r -> new SIRtree())
+              .insert(minTripTime, maxTripTime, scheduledTrip);
+      tripsByRoute.computeIfAbsent(routeId, r -> new ArrayList<>()).add(scheduledTrip);
+    }
+    tripTimesByRoute.values().forEach(SIRtree::build);
+    _tripTimesByRoute = tripTimesByRoute;
+    _tripsByRoute = tripsByRoute;
+    _activatedTrips.clear();
+    _windows.clear();
 
-              return sb.build();
-            })
-            .max()
-            .getAsInt() / 86400.0);
+    maxLookback = (int) Math.ceil(maxTime / 86400.0);
   }
 
   public Stream<ActivatedTrip> getTripsForRangeAndRoutes(Date start, Date end, Set<String> routeIds) {
     ServiceDate startDate = new ServiceDate(start);
+    evictActivatedTrips(startDate);
 
     return Stream.iterate(startDate, ServiceDate::previous)
             .limit(maxLookback)
             .flatMap(sd -> {
-              Set<AgencyAndId> serviceIdsForDate = _csd.getServiceIdsForDate(sd);
+              ActiveServices services = _activeServiceCache.getActiveServices(sd);
 
-              int sdOrigin = (int) (sd.getAsCalendar(_csd.getTimeZoneForAgencyId(_agencyId)).getTimeInMillis() / 1000);
+              int sdOrigin = (int) services.getOrigin();
 
               int startTime = (int) ((start.getTime() / 1000) - sdOrigin);
               int endTime = (int) ((end.getTime() / 1000) - sdOrigin);
 
-              Stream<Trip> tripsStream = tripTimesTree.query(startTime, endTime).stream()
-                      .map(Trip.class::cast);
-
-              return tripsStream
-                      .filter(t -> routeIds.contains(t.getRoute().getId().getId()))
-                      .filter(t -> serviceIdsForDate.contains(t.getServiceId()))
-                      .map(t -> new ActivatedTrip(sd, t, _dao.getStopTimesForTrip(t)));
+              return routeIds.stream()
+                      .map(_tripTimesByRoute::get)
+                      .filter(Objects::nonNull)
+                      .flatMap(tree -> ((List<?>) tree.query(startTime, endTime)).stream())
+                      .map(ScheduledTrip.class::cast)
+                      .filter(t -> services.isActive(t.serviceIndex))
+                      .map(t -> activate(sd, t.info));
             });
 
   }
 
+  /**
+   * Find the trips on a route active in a time range, as {@link #getTripsForRangeAndRoute} does. The active trips of
+   * each route are kept between calls: when the range only moves forward within a service date, trips are added as
+   * they start and dropped as they end, so the cost follows the trips entering and leaving the range. Otherwise the
+   * route's trips are activated again from scratch.
+   *
+   * Windows are kept for each feed and route. Feeds poll at their own times with their own ranges, so sharing a
+   * route's window between them would rebuild it whenever the other feed's range was behind.
+   *
+   * The result is an immutable snapshot, which is shared by calls until a trip starts or ends. Windows are immutable
+   * too, so no lock is needed: if two calls for a feed and route overlap, each gets the trips for its own range, and
+   * the window kept is one of theirs.
+   *
+   * @param feedId ID of the feed being matched, or {@link #NO_FEED}
+   * @param start start of range
+   * @param end end of range
+   * @param routeId static route ID
+   * @return active trips on the route, in order of start time
+   */
+  public List<ActivatedTrip> getActiveTripsForRoute(int feedId, Date start, Date end, String routeId) {
+    long newStart = start.getTime() / 1000, newEnd = end.getTime() / 1000;
+    WindowKey key = new WindowKey(feedId, routeId);
+    RouteWindow window = _windows.get(key);
+    RouteWindow moved = window != null ? window.moveTo(newStart, newEnd)
+            : newWindow(routeId, new ServiceDate(start)).moveTo(newStart, newEnd);
+    if (moved != window)
+      _windows.put(key, moved);
+    return moved.trips;
+  }
+
+  public List<ActivatedTrip> getActiveTripsForRoute(Date start, Date end, String routeId) {
+    return getActiveTripsForRoute(NO_FEED, start, end, routeId);
+  }
+
+  private ActivatedTrip activate(ServiceDate sd, StaticTripInfo info) {
+    return _activatedTrips.computeIfAbsent(sd, d -> new ConcurrentHashMap<>())
+            .computeIfAbsent(info, i -> new ActivatedTrip(sd, i));
+  }
+
+  // Activated trips are kept for the service dates of recent queries. Drop those older than any the latest query
+  // could look back to.
+  private void evictActivatedTrips(ServiceDate startDate) {
+    ServiceDate oldest = startDate;
+    for (int i = 0; i < maxLookback; i++)
+      oldest = oldest.previous();
+    ServiceDate cutoff = oldest;
+    _activatedTrips.keySet().removeIf(sd -> sd.compareTo(cutoff) < 0);
+  }
+
   public Stream<ActivatedTrip> getTripsForRangeAndRoute(Date start, Date end, String routeId) {
     return getTripsForRangeAndRoutes(start, end, ImmutableSet.of(routeId));
   }
 
+  private static class WindowKey {
+    final int feedId;
+    final String routeId;
+
+    WindowKey(int feedId, String routeId) {
+      this.feedId = feedId;
+      this.routeId = routeId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (!(o instanceof WindowKey))
+        return false;
+      WindowKey other = (WindowKey) o;
+      return feedId == other.feedId && routeId.equals(other.routeId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * feedId + routeId.hashCode();
+    }
+  }
+
+  // Trip with what is needed to activate it, stored in the interval trees. Times are in seconds into the service day.
+  private static class ScheduledTrip {
+    final StaticTripInfo info;
+    final int serviceIndex;
+    final int minTime;
+    final int maxTime;
+
+    ScheduledTrip(StaticTripInfo info, int serviceIndex, int minTime, int maxTime) {
+      this.info = info;
+      this.serviceIndex = serviceIndex;
+      this.minTime = minTime;
+      this.maxTime = maxTime;
+    }
+  }
+
+  // Trip activated on a service date, with its times in seconds since the epoch.
+  private static class Activation {
+    final ActivatedTrip trip;
+    final long start;
+    final long end;
+
+    Activation(ActivatedTrip trip, long start, long end) {
+      this.trip = trip;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  // Window on a new service date: the route's activations that trips running on the date could come from, none yet
+  // started.
+  private RouteWindow newWindow(String routeId, ServiceDate startDate) {
+    evictActivatedTrips(startDate);
+    List<Activation> activations = new ArrayList<>();
+    ServiceDate sd = startDate;
+    for (int i = 0; i < maxLookback; i++, sd = sd.previous()) {
+      ActiveServices services = _activeServiceCache.getActiveServices(sd);
+      for (ScheduledTrip t : _tripsByRoute.getOrDefault(routeId, Collections.emptyList())) {
+        if (services.isActive(t.serviceIndex))
+          activations.add(new Activation(activate(sd, t.info), services.getOrigin() + t.minTime, services.getOrigin() + t.maxTime));
+      }
+    }
+    activations.sort(Comparator.comparingLong(a -> a.start));
+    return new RouteWindow(routeId, startDate, Long.MIN_VALUE, Long.MIN_VALUE,
+            activations.toArray(new Activation[0]), 0, ImmutableList.of());
+  }
+
+  // Active trips of a route for the last range asked for. Activations from nextPending on have not started yet, in
+  // order of start time. Windows are not changed once made; moving one makes another.
+  private class RouteWindow {
+    final String routeId;
+    final ServiceDate startDate;
+    final long start, end;
+    final Activation[] pending;
+    final int nextPending;
+    final List<Activation> active;
+    final long minEnd;
+    final List<ActivatedTrip> trips;
+
+    RouteWindow(String routeId, ServiceDate startDate, long start, long end, Activation[] pending, int nextPending,
+                List<Activation> active) {
+      this.routeId = routeId;
+      this.startDate = startDate;
+      this.start = start;
+      this.end = end;
+      this.pending = pending;
+      this.nextPending = nextPending;
+      this.active = active;
+      long min = Long.MAX_VALUE;
+      ImmutableList.Builder<ActivatedTrip> builder = ImmutableList.builder();
+      for (Activation a : active) {
+        min = Math.min(min, a.end);
+        builder.add(a.trip);
+      }
+      this.minEnd = min;
+      this.trips = builder.build();
+    }
+
+    // Same trips over another range.
+    private RouteWindow(RouteWindow other, long start, long end) {
+      this.routeId = other.routeId;
+      this.startDate = other.startDate;
+      this.start = start;
+      this.end = end;
+      this.pending = other.pending;
+      this.nextPending = other.nextPending;
+      this.active = other.active;
+      this.minEnd = other.minEnd;
+      this.trips = other.trips;
+    }
+
+    RouteWindow moveTo(long newStart, long newEnd) {
+      ServiceDate newStartDate = new ServiceDate(new Date(newStart * 1000));
+      if (!newStartDate.equals(startDate) || newStart < start || newEnd < end)
+        return newWindow(routeId, newStartDate).moveTo(newStart, newEnd);
+
+      int newNextPending = nextPending;
+      while (newNextPending < pending.length && pending[newNextPending].start <= newEnd)
+        newNextPending++;
+      if (newNextPending == nextPending && minEnd >= newStart)
+        return newStart == start && newEnd == end ? this : new RouteWindow(this, newStart, newEnd);
+
+      ImmutableList.Builder<Activation> newActive = ImmutableList.builder();
+      for (Activation a : active) {
+        if (a.end >= newStart)
+          newActive.add(a);
+      }
+      for (int i = nextPending; i < newNextPending; i++) {
+        if (pending[i].end >= newStart)
+          newActive.add(pending[i]);
+      }
+      return new RouteWindow(routeId, startDate, newStart, newEnd, pending, newNextPending, newActive.build());
+    }
+  }
+
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches TripUpdates for the routes and time range a {@link TripMatcher} was initialized with.
+ *
+ * Contexts are immutable, so one context can be used from several threads, and contexts for different feeds or
+ * routes can be used at the same time.
+ */
+@FunctionalInterface
+public interface TripMatchContext {
+
+  /**
+   * Match a TripUpdate to a static GTFS trip, if possible.
+   *
+   * @param tu TripUpdate (or TripUpdate.Builder) to be matched
+   * @param rtid parsed ID of TripUpdate
+   * @param timestamp time of feed in seconds
+   * @return results of match
+   */
+  TripMatchResult match(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp);
+
+  /**
+   * Match all TripUpdates of a route. Implementations can override this to share work between TripUpdates; by
+   * default each is matched on its own.
+   *
+   * @param routeId static route ID of the TripUpdates
+   * @param tripUpdates TripUpdates (or TripUpdate.Builders) to be matched, with route IDs already rewritten
+   * @param rtids parsed IDs of the TripUpdates, in the same order (null where the ID could not be parsed)
+   * @param timestamp time of feed in seconds
+   * @return results of matching, in the order of tripUpdates
+   */
+  default List<TripMatchResult> matchAll(String routeId, List<? extends GtfsRealtime.TripUpdateOrBuilder> tripUpdates,
+                                         List<NyctTripId> rtids, long timestamp) {
+    List<TripMatchResult> results = new ArrayList<>(tripUpdates.size());
+    for (int i = 0; i < tripUpdates.size(); i++)
+      results.add(match(tripUpdates.get(i), rtids.get(i), timestamp));
+    return results;
+  }
+}
@@ -15,38 +15,42 @@
  */
 package com.kurtraschke.nyctrtproxy.services;
 
-import com.google.transit.realtime.GtfsRealtime;
-import com.kurtraschke.nyctrtproxy.model.NyctTripId;
-import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
-
 import java.util.Date;
 import java.util.Set;
 
 /**
- * Match a TripUpdate to a static GTFS trip.
+ * Match TripUpdates to static GTFS trips.
  *
- * Implementations may require an initialization step; if so they can override {@link #initForFeed}.
+ * Matching happens in a {@link TripMatchContext} obtained from {@link #initForFeed}. One matcher is shared by all
+ * feeds, and routes and feeds can be matched concurrently. Matchers may keep state between calls: ActivatedTripMatcher
+ * keeps a window of active trips for each feed and route in TripActivator, which is only updated, rather than rebuilt,
+ * while the calls for that feed and route move forward in time.
  *
  * @author Simon Jacobs
  */
 public interface TripMatcher {
 
   /**
-   * Match a TripUpdate to a static GTFS trip, if possible.
+   * Prepare to match TripUpdates on some routes. (In practice, only ActivatedTripMatcher needs the arguments.)
    *
-   * @param tu TripUpdate (or TripUpdate.Builder) to be matched
-   * @param rtid parsed ID of TripUpdate
-   * @param timestamp time of feed in seconds
-   * @return results of match
+   * @param start Matched static trips should have a start time after or equal to this value.
+   * @param end Matched static trips should have an end time before or equal to this value.
+   * @param routeIds set of routes which will need to be matched in the returned context.
+   * @return immutable context in which to match TripUpdates on the routes
    */
-  TripMatchResult match(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp);
+  TripMatchContext initForFeed(Date start, Date end, Set<String> routeIds);
 
   /**
-   * Optional initialization step matcher may require. (In practice, only ActivatedTripMatcher uses this.)
+   * Prepare to match TripUpdates of a feed on some routes. Matchers that keep state between calls keep it apart for
+   * each feed, so feeds with different ranges on the same route do not undo each other's work.
    *
+   * @param feedId ID of the feed being matched
    * @param start Matched static trips should have a start time after or equal to this value.
    * @param end Matched static trips should have an end time before or equal to this value.
-   * @param routeIds set of routes which will need to be matched during subsequent calls to {@link #match}.
+   * @param routeIds set of routes which will need to be matched in the returned context.
+   * @return immutable context in which to match TripUpdates on the routes
    */
-  void initForFeed(Date start, Date end, Set<String> routeIds);
+  default TripMatchContext initForFeed(int feedId, Date start, Date end, Set<String> routeIds) {
+    return initForFeed(start, end, routeIds);
+  }
 }
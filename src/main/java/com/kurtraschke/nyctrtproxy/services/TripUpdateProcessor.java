@@ -20,6 +20,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
@@ -27,27 +28,41 @@ import com.google.transit.realtime.GtfsRealtime;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
 import com.google.transit.realtime.GtfsRealtimeNYCT;
 import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
+import com.kurtraschke.nyctrtproxy.model.ActiveServices;
 import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.StaticTripInfo;
+import com.kurtraschke.nyctrtproxy.model.StopPattern;
+import com.kurtraschke.nyctrtproxy.model.TripAssignments;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Named;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
-import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.earliestTripStart;
 import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.fixedStartDate;
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.tripStart;
 
 public class TripUpdateProcessor {
 
@@ -62,10 +77,22 @@ public class TripUpdateProcessor {
 
   private int _latencyLimit = 300;
 
+  private boolean _rememberTripAssignments = false;
+
+  private Map<Integer, TripAssignments> _assignmentsByFeed = new ConcurrentHashMap<>();
+
+  private boolean _parallelRouteMatching = false;
+
+  private int _routeMatchingThreads = Runtime.getRuntime().availableProcessors();
+
+  private ForkJoinPool _routeMatchingPool;
+
   private ProxyDataListener _listener;
 
   private TripMatcher _tripMatcher;
 
+  private ActiveServiceCache _activeServiceCache;
+
   // config
   @Inject(optional = true)
   public void setLatencyLimit(@Named("NYCT.latencyLimit") int limit) {
@@ -90,6 +117,21 @@ public class TripUpdateProcessor {
     _addToTripReplacementPeriodByRoute = new Gson().fromJson(json, type);
   }
 
+  @Inject(optional = true)
+  public void setRememberTripAssignments(@Named("NYCT.rememberTripAssignments") boolean rememberTripAssignments) {
+    _rememberTripAssignments = rememberTripAssignments;
+  }
+
+  @Inject(optional = true)
+  public void setParallelRouteMatching(@Named("NYCT.parallelRouteMatching") boolean parallelRouteMatching) {
+    _parallelRouteMatching = parallelRouteMatching;
+  }
+
+  @Inject(optional = true)
+  public void setRouteMatchingThreads(@Named("NYCT.routeMatchingThreads") int routeMatchingThreads) {
+    _routeMatchingThreads = routeMatchingThreads;
+  }
+
   @Inject(optional = true)
   public void setListener(ProxyDataListener listener) {
     _listener = listener;
@@ -100,6 +142,35 @@ public class TripUpdateProcessor {
     _tripMatcher = tm;
   }
 
+  @Inject
+  public void setActiveServiceCache(ActiveServiceCache activeServiceCache) {
+    _activeServiceCache = activeServiceCache;
+  }
+
+  // Routes of a feed are matched on a pool of their own, so a feed thread waiting on its routes cannot hold up the
+  // threads that match them. The pool only exists when parallel matching is enabled.
+  @PostConstruct
+  public void start() {
+    if (_parallelRouteMatching && _routeMatchingPool == null)
+      _routeMatchingPool = new ForkJoinPool(_routeMatchingThreads);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_routeMatchingPool != null)
+      _routeMatchingPool.shutdownNow();
+  }
+
+  /**
+   * Check whether a feed is too old to be published.
+   *
+   * @param timestamp feed header timestamp in seconds
+   * @return true if the feed's latency exceeds the configured limit
+   */
+  public boolean exceedsLatencyLimit(long timestamp) {
+    return _latencyLimit > 0 && (new Date().getTime() / 1000) - timestamp > _latencyLimit;
+  }
+
   public List<GtfsRealtime.TripUpdate> processFeed(Integer feedId, GtfsRealtime.FeedMessage fm) {
 
     MatchMetrics feedMetrics = new MatchMetrics();
@@ -115,10 +186,17 @@ public class TripUpdateProcessor {
     final Map<String, String> realtimeToStaticRouteMap = _realtimeToStaticRouteMapByFeed
             .getOrDefault(feedId, Collections.emptyMap());
 
+    // If assignments are remembered, RT trips matched in the last poll keep their static trip if it is still valid,
+    // and no two RT trips on a route are matched to the same static trip.
+    TripAssignments assignments = _rememberTripAssignments
+            ? _assignmentsByFeed.computeIfAbsent(feedId, k -> new TripAssignments()) : null;
+
     int nExpiredTus = 0;
 
-    // Read in trip updates per route. Skip trip updates that have too stale of data.
-    Multimap<String, GtfsRealtime.TripUpdate> tripUpdatesByRoute = ArrayListMultimap.create();
+    // Read in trip updates per route, in one pass that works out everything later stages need to know about each.
+    // Skip trip updates that have too stale of data.
+    Multimap<String, IngestedTripUpdate> tripUpdatesByRoute = ArrayListMultimap.create();
+    long earliestTripStart = Long.MAX_VALUE;
     for (GtfsRealtime.FeedEntity entity : fm.getEntityList()) {
       if (entity.hasTripUpdate()) {
         GtfsRealtime.TripUpdate tu = entity.getTripUpdate();
@@ -126,15 +204,17 @@ public class TripUpdateProcessor {
           nExpiredTus++;
         }
         else {
-          String routeId = tu.getTrip().getRouteId();
-          routeId = realtimeToStaticRouteMap.getOrDefault(routeId, routeId);
-          tripUpdatesByRoute.put(routeId, tu);
+          IngestedTripUpdate itu = new IngestedTripUpdate(tu, realtimeToStaticRouteMap);
+          tripUpdatesByRoute.put(itu.routeId, itu);
+          if (itu.tripStart > 0)
+            earliestTripStart = Math.min(earliestTripStart, itu.tripStart);
         }
       }
     }
+    Date earliestStart = earliestTripStart < Long.MAX_VALUE ? new Date(earliestTripStart) : null;
 
-    List<GtfsRealtime.TripUpdate> ret = Lists.newArrayList();
-
+    // Routes are matched independently of each other, possibly in parallel.
+    List<Supplier<RouteMatch>> tasks = new ArrayList<>();
     for (GtfsRealtimeNYCT.TripReplacementPeriod trp : fm.getHeader()
             .getExtension(GtfsRealtimeNYCT.nyctFeedHeader)
             .getTripReplacementPeriodList()) {
@@ -142,127 +222,272 @@ public class TripUpdateProcessor {
         continue;
       GtfsRealtime.TimeRange range = trp.getReplacementPeriod();
 
-      Date start = range.hasStart() ? new Date(range.getStart() * 1000) : earliestTripStart(tripUpdatesByRoute.values());
+      Date start = range.hasStart() ? new Date(range.getStart() * 1000) : earliestStart;
       Date end = range.hasEnd() ? new Date(range.getEnd() * 1000) : new Date(fm.getHeader().getTimestamp() * 1000);
 
       // All route IDs in this trip replacement period
-      Set<String> routeIds = Arrays.stream(trp.getRouteId().split(", ?"))
-              .map(routeId -> realtimeToStaticRouteMap.getOrDefault(routeId, routeId))
-              .collect(Collectors.toSet());
+      Set<String> routeIds = getRouteIds(trp, realtimeToStaticRouteMap);
 
       for (String routeId : routeIds) {
-        String newRouteId = _addToTripReplacementPeriodByRoute.get(routeId);
-        if (newRouteId != null)
-          routeIds.add(newRouteId);
+        List<IngestedTripUpdate> tripUpdates = new ArrayList<>(tripUpdatesByRoute.get(routeId));
+        tasks.add(() -> matchRoute(feedId, routeId, start, end, tripUpdates, fm.getHeader().getTimestamp(), assignments));
       }
+    }
 
-      // Kurt's trip matching algorithm (ActivatedTripMatcher) requires calculating currently-active static trips at this point.
-      _tripMatcher.initForFeed(start, end, routeIds);
+    List<GtfsRealtime.TripUpdate> ret = Lists.newArrayList();
+    for (RouteMatch routeMatch : runAll(tasks)) {
+      ret.addAll(routeMatch.tripUpdates);
+      feedMetrics.merge(routeMatch.metrics);
+      if (_listener != null)
+        _listener.reportMatchesForRoute(routeMatch.routeId, routeMatch.metrics);
+    }
 
-      for (String routeId : routeIds) {
+    if (assignments != null)
+      assignments.endPoll();
 
-        MatchMetrics routeMetrics = new MatchMetrics();
+    if (_listener != null)
+      _listener.reportMatchesForFeed(feedId.toString(), feedMetrics);
 
-        Multimap<String, TripMatchResult> matchesByTrip = ArrayListMultimap.create();
-        Collection<GtfsRealtime.TripUpdate> tripUpdates = tripUpdatesByRoute.get(routeId);
-        for (GtfsRealtime.TripUpdate tu : tripUpdates) {
-          GtfsRealtime.TripUpdate.Builder tub = GtfsRealtime.TripUpdate.newBuilder(tu);
-          GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
+    _log.info("feed={}, expired TUs={}", feedId, nExpiredTus);
+    return ret;
+  }
 
-          // rewrite route ID for some routes
-          tb.setRouteId(realtimeToStaticRouteMap.getOrDefault(tb.getRouteId(), tb.getRouteId()));
+  // Match, merge and rewrite the trip updates of one route.
+  private RouteMatch matchRoute(int feedId, String routeId, Date start, Date end, List<IngestedTripUpdate> tripUpdates,
+                                long timestamp, TripAssignments assignments) {
+    // Kurt's trip matching algorithm (ActivatedTripMatcher) requires calculating currently-active static trips at this point.
+    TripMatchContext matchContext = _tripMatcher.initForFeed(feedId, start, end, Collections.singleton(routeId));
 
-          // get ID which consists of route, direction, origin-departure time, possibly a path identifier (for feed 1.)
-          NyctTripId rtid = NyctTripId.buildFromTripDescriptor(tb);
+    MatchMetrics routeMetrics = new MatchMetrics();
+    List<GtfsRealtime.TripUpdate> ret = Lists.newArrayList();
 
-          // If we were able to parse the trip ID, there are various fixes
-          // we may need to apply.
-          if (rtid != null) {
+    // Results in the order of tripUpdates. Reused assignments are filled in first, then the rest are matched together.
+    List<TripMatchResult> results = new ArrayList<>(tripUpdates.size());
+    List<GtfsRealtime.TripUpdate.Builder> toMatch = new ArrayList<>();
+    List<NyctTripId> toMatchIds = new ArrayList<>();
+    Set<TripMatchResult> reusedAssignments = Sets.newIdentityHashSet();
+    for (IngestedTripUpdate itu : tripUpdates) {
+      // The builder shares the input's stop time updates until one of them is edited. Edits replace whole stop time
+      // updates rather than going through nested builders, and the output is built once, at the end.
+      GtfsRealtime.TripUpdate.Builder tub = GtfsRealtime.TripUpdate.newBuilder(itu.tripUpdate);
+      GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
+
+      // rewrite route ID for some routes
+      tb.setRouteId(itu.routeId);
+
+      // ID consists of route, direction, origin-departure time, possibly a path identifier (for feed 1.)
+      NyctTripId rtid = itu.rtid;
+
+      // If we were able to parse the trip ID, there are various fixes
+      // we may need to apply.
+      if (rtid != null) {
+
+        // Fix stop IDs which don't include direction
+        for (int i = 0; i < tub.getStopTimeUpdateCount(); i++) {
+          StopTimeUpdate stu = tub.getStopTimeUpdate(i);
+          if (!(stu.getStopId().endsWith("N") || stu.getStopId().endsWith("S"))) {
+            tub.setStopTimeUpdate(i, stu.toBuilder().setStopId(stu.getStopId() + rtid.getDirection()));
+          }
+        }
 
-            // Fix stop IDs which don't include direction
-            tub.getStopTimeUpdateBuilderList().forEach(stub -> {
-              if (!(stub.getStopId().endsWith("N") || stub.getStopId().endsWith("S"))) {
-                stub.setStopId(stub.getStopId() + rtid.getDirection());
-              }
-            });
+        // Re-set the trip ID to the parsed trip ID; coerces IDs to a uniform format.
+        // If the trip is matched, the ID will be rewritten again to the corresponding static trip ID below.
+        tb.setTripId(rtid.toString());
+      }
 
-            // Re-set the trip ID to the parsed trip ID; coerces IDs to a uniform format.
-            // If the trip is matched, the ID will be rewritten again to the corresponding static trip ID below.
-            tb.setTripId(rtid.toString());
-          }
+      // Some routes have start date set incorrectly
+      if (!itu.startDate.equals(tb.getStartDate())) {
+        tb.setStartDate(itu.startDate);
+      }
 
-          // Some routes have start date set incorrectly
-          if (tb.getStartDate().length() > 8) {
-            tb.setStartDate(fixedStartDate(tb));
-          }
+      TripMatchResult result = null;
+      if (assignments != null) {
+        result = assignments.get(itu.assignmentKey(), tub);
+        if (result != null && rtid != null && result.getResult().getParsedTripId().routeDirMatch(rtid)
+                && isStillActive(result.getResult(), start, end, timestamp))
+          reusedAssignments.add(result);
+        else
+          result = null;
+      }
+      if (result == null) {
+        toMatch.add(tub);
+        toMatchIds.add(rtid);
+      }
+      results.add(result);
+    }
 
-          TripMatchResult result = _tripMatcher.match(tub, rtid, fm.getHeader().getTimestamp());
-          matchesByTrip.put(result.getTripId(), result);
-        }
+    Iterator<TripMatchResult> matched = matchContext.matchAll(routeId, toMatch, toMatchIds, timestamp).iterator();
+    Multimap<String, TripMatchResult> matchesByTrip = ArrayListMultimap.create();
+    Map<TripMatchResult, IngestedTripUpdate> ingested = new IdentityHashMap<>();
+    for (int i = 0; i < results.size(); i++) {
+      TripMatchResult result = results.get(i) != null ? results.get(i) : matched.next();
+      ingested.put(result, tripUpdates.get(i));
+      matchesByTrip.put(result.getTripId(), result);
+    }
 
-        // For TUs that match to same trip - possible they should be merged (route D has mid-line relief points where trip ID changes)
-        for (Collection<TripMatchResult> matches : matchesByTrip.asMap().values())
-          tryMergeResult(matches);
-
-        // Read out results of matching. If there is a match, rewrite TU's trip ID. Add TU to return list.
-        for (TripMatchResult result : matchesByTrip.values()) {
-          if (!result.getStatus().equals(TripMatchResult.Status.MERGED)) {
-            if (result.hasResult() && !result.lastStopMatches()) {
-              _log.info("no stop match rt={} static={}", result.getTripUpdate().getTrip().getTripId(), result.getResult().getTrip().getId().getId());
-              result.setStatus(TripMatchResult.Status.NO_MATCH);
-              result.setResult(null);
-            }
-            GtfsRealtime.TripUpdate.Builder tub = result.getTripUpdateBuilder();
-            GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
-            if (result.hasResult()) {
-              ActivatedTrip at = result.getResult();
-              String staticTripId = at.getTrip().getId().getId();
-              _log.debug("matched {} -> {}", tb.getTripId(), staticTripId);
-              tb.setTripId(staticTripId);
-              removeTimepoints(at, tub);
-            } else {
-              _log.debug("unmatched: {} due to {}", tub.getTrip().getTripId(), result.getStatus());
-              tb.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED);
-            }
-            ret.add(tub.build());
-          }
+    // For TUs that match to same trip - possible they should be merged (route D has mid-line relief points where trip ID changes)
+    for (Collection<TripMatchResult> matches : matchesByTrip.asMap().values())
+      tryMergeResult(matches, ingested);
 
-          routeMetrics.add(result);
-          feedMetrics.add(result);
-        }
+    if (assignments != null) {
+      for (Collection<TripMatchResult> matches : matchesByTrip.asMap().values())
+        resolveDuplicateMatches(matches, reusedAssignments);
+    }
 
-        if (_listener != null)
-          _listener.reportMatchesForRoute(routeId, routeMetrics);
+    // Read out results of matching. If there is a match, rewrite TU's trip ID. Add TU to return list.
+    for (TripMatchResult result : matchesByTrip.values()) {
+      if (!result.getStatus().equals(TripMatchResult.Status.MERGED)) {
+        if (result.hasResult() && !result.lastStopMatches()) {
+          _log.info("no stop match rt={} static={}", result.getTripUpdate().getTrip().getTripId(), result.getResult().getTrip().getId().getId());
+          result.setStatus(TripMatchResult.Status.NO_MATCH);
+          result.setResult(null);
         }
+        GtfsRealtime.TripUpdate.Builder tub = result.getTripUpdateBuilder();
+        GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
+        if (result.hasResult()) {
+          ActivatedTrip at = result.getResult();
+          String staticTripId = at.getTrip().getId().getId();
+          _log.debug("matched {} -> {}", tb.getTripId(), staticTripId);
+          tb.setTripId(staticTripId);
+          removeTimepoints(at, tub);
+          if (assignments != null)
+            assignments.put(ingested.get(result).assignmentKey(), result);
+        } else {
+          _log.debug("unmatched: {} due to {}", tub.getTrip().getTripId(), result.getStatus());
+          tb.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED);
+        }
+        ret.add(tub.build());
       }
 
-    if (_listener != null)
-      _listener.reportMatchesForFeed(feedId.toString(), feedMetrics);
+      routeMetrics.add(result);
+    }
 
-    _log.info("feed={}, expired TUs={}", feedId, nExpiredTus);
-    return ret;
+    return new RouteMatch(routeId, ret, routeMetrics);
+  }
+
+  private List<RouteMatch> runAll(List<Supplier<RouteMatch>> tasks) {
+    if (!_parallelRouteMatching || _routeMatchingPool == null || tasks.size() < 2)
+      return tasks.stream().map(Supplier::get).collect(Collectors.toList());
+    List<CompletableFuture<RouteMatch>> futures = tasks.stream()
+            .map(task -> CompletableFuture.supplyAsync(task, _routeMatchingPool))
+            .collect(Collectors.toList());
+    return futures.stream().map(CompletableFuture::join).collect(Collectors.toList());
+  }
+
+  /**
+   * Get a filter accepting the realtime route IDs whose trip updates {@link #processFeed} would match for a feed
+   * with the given header. Trip updates on any other route are dropped by processFeed, so they need not be decoded.
+   *
+   * If a trip replacement period has no start, processFeed starts it at the earliest start of any unexpired trip
+   * update in the feed, whatever its route. Every trip update is accepted then, so that the earliest start is taken
+   * over the same trip updates as when the whole feed is decoded.
+   *
+   * @param feedId ID of the feed
+   * @param header header of the feed
+   * @return filter on route IDs as they appear in the feed, before any rewriting
+   */
+  public Predicate<String> getRouteFilter(Integer feedId, GtfsRealtime.FeedHeader header) {
+    final Map<String, String> realtimeToStaticRouteMap = _realtimeToStaticRouteMapByFeed
+            .getOrDefault(feedId, Collections.emptyMap());
+    Set<String> staticRouteIds = new HashSet<>();
+    for (GtfsRealtimeNYCT.TripReplacementPeriod trp : header
+            .getExtension(GtfsRealtimeNYCT.nyctFeedHeader)
+            .getTripReplacementPeriodList()) {
+      if (!_routeBlacklistByFeed.getOrDefault(feedId, Collections.emptySet()).contains(trp.getRouteId())) {
+        if (!trp.getReplacementPeriod().hasStart())
+          return routeId -> true;
+        staticRouteIds.addAll(getRouteIds(trp, realtimeToStaticRouteMap));
+      }
+    }
+    return routeId -> staticRouteIds.contains(realtimeToStaticRouteMap.getOrDefault(routeId, routeId));
+  }
+
+  // Static route IDs covered by a trip replacement period.
+  private Set<String> getRouteIds(GtfsRealtimeNYCT.TripReplacementPeriod trp, Map<String, String> realtimeToStaticRouteMap) {
+    Set<String> routeIds = Arrays.stream(trp.getRouteId().split(", ?"))
+            .map(routeId -> realtimeToStaticRouteMap.getOrDefault(routeId, routeId))
+            .collect(Collectors.toSet());
+
+    for (String routeId : Lists.newArrayList(routeIds)) {
+      String newRouteId = _addToTripReplacementPeriodByRoute.get(routeId);
+      if (newRouteId != null)
+        routeIds.add(newRouteId);
+    }
+    return routeIds;
   }
 
   // TU is *expired* if the latest arrival or departure is 5 minutes before feed's timestamp
   private static boolean expiredTripUpdate(GtfsRealtime.TripUpdate tu, long timestamp) {
-    OptionalLong latestTime = tu.getStopTimeUpdateList()
-            .stream()
-            .map(stu -> stu.hasDeparture() ? stu.getDeparture() : stu.getArrival())
-            .filter(GtfsRealtime.TripUpdate.StopTimeEvent::hasTime)
-            .mapToLong(GtfsRealtime.TripUpdate.StopTimeEvent::getTime).max();
-    return latestTime.isPresent() && latestTime.getAsLong() < timestamp - 300;
+    boolean hasTime = false;
+    long latestTime = Long.MIN_VALUE;
+    for (int i = 0; i < tu.getStopTimeUpdateCount(); i++) {
+      StopTimeUpdate stu = tu.getStopTimeUpdate(i);
+      GtfsRealtime.TripUpdate.StopTimeEvent event = stu.hasDeparture() ? stu.getDeparture() : stu.getArrival();
+      if (event.hasTime()) {
+        hasTime = true;
+        latestTime = Math.max(latestTime, event.getTime());
+      }
+    }
+    return hasTime && latestTime < timestamp - 300;
   }
 
   // Remove StopTimeUpdate from TU if the stop is not in trip's list of stops.
   // NOTE this will remove timepoints, but remove additional stops for express trips that are running local.
+  // The TU's stops are walked alongside the static trip's precomputed stops, so a stop is only looked up by ID when
+  // it is not the next one in the pattern. The kept stop time updates are copied only once one is removed.
   private void removeTimepoints(ActivatedTrip trip, GtfsRealtime.TripUpdate.Builder tripUpdate) {
-    Set<String> stopIds = trip.getStopTimes().stream()
-            .map(s -> s.getStop().getId().getId()).collect(Collectors.toSet());
-    for(int i = 0; i < tripUpdate.getStopTimeUpdateCount(); i++) {
-      String id = tripUpdate.getStopTimeUpdate(i).getStopId();
-      if (!stopIds.contains(id)) {
-        tripUpdate.removeStopTimeUpdate(i);
-        i--;
+    StopPattern pattern = trip.getTripInfo().getStopPattern();
+    List<StopTimeUpdate> stus = tripUpdate.getStopTimeUpdateList();
+    List<StopTimeUpdate> kept = null;
+    int next = 0;
+    for (int i = 0; i < stus.size(); i++) {
+      int position = pattern.positionOfStop(stus.get(i).getStopId(), next);
+      boolean keep = position >= 0;
+      if (keep)
+        next = position + 1;
+      if (!keep && kept == null)
+        kept = new ArrayList<>(stus.subList(0, i));
+      else if (keep && kept != null)
+        kept.add(stus.get(i));
+    }
+    if (kept != null)
+      tripUpdate.clearStopTimeUpdate().addAllStopTimeUpdate(kept);
+  }
+
+  // A remembered match is only reused while the matcher could still make it: the trip's service date is the feed's
+  // date or the day before, the trip runs on that date, and it overlaps the range being matched. Otherwise the
+  // TripUpdate is matched afresh.
+  private boolean isStillActive(ActivatedTrip trip, Date start, Date end, long timestamp) {
+    ServiceDate feedDate = _activeServiceCache.getServiceDate(new Date(timestamp * 1000));
+    ServiceDate sd = trip.getServiceDate();
+    if (!sd.equals(feedDate) && !sd.equals(feedDate.previous()))
+      return false;
+    ActiveServices services = _activeServiceCache.getActiveServices(sd);
+    if (!services.isActive(trip.getTrip().getServiceId()))
+      return false;
+    StaticTripInfo info = trip.getTripInfo();
+    long tripStart = services.getOrigin() + info.getFirstDepartureTime();
+    long tripEnd = services.getOrigin() + info.getLastArrivalTime();
+    return tripStart <= end.getTime() / 1000 && (start == null || tripEnd >= start.getTime() / 1000);
+  }
+
+  // Of the unmerged TUs matched to one static trip, keep only the match remembered from the last poll, or else the
+  // best match. The others are unmatched, with status DUPLICATE_MATCH.
+  private void resolveDuplicateMatches(Collection<TripMatchResult> matches, Set<TripMatchResult> reusedAssignments) {
+    List<TripMatchResult> claims = matches.stream()
+            .filter(r -> r.hasResult() && r.getStatus() != TripMatchResult.Status.MERGED && r.lastStopMatches())
+            .collect(Collectors.toList());
+    if (claims.size() < 2)
+      return;
+    TripMatchResult winner = claims.stream()
+            .filter(reusedAssignments::contains)
+            .findFirst()
+            .orElseGet(() -> Collections.max(claims));
+    for (TripMatchResult result : claims) {
+      if (result != winner) {
+        _log.debug("duplicate match rt={} static={}", result.getTripUpdate().getTrip().getTripId(), result.getResult().getTrip().getId().getId());
+        result.setStatus(TripMatchResult.Status.DUPLICATE_MATCH);
+        result.setResult(null);
       }
     }
   }
@@ -271,31 +496,30 @@ public class TripUpdateProcessor {
   // for trips which have mid-line crew relief (route D).
   // The mid-line relief points are in the train ID so we can reconstruct
   // the whole trip if those points match.
-  private void tryMergeResult(Collection<TripMatchResult> col) {
+  private void tryMergeResult(Collection<TripMatchResult> col, Map<TripMatchResult, IngestedTripUpdate> ingested) {
     if (col.size() != 2)
       return;
     Iterator<TripMatchResult> iter = col.iterator();
-    mergedResult(iter.next(), iter.next());
+    TripMatchResult first = iter.next(), second = iter.next();
+    if (ingested.get(first).rtid.getOriginDepartureTime() > ingested.get(second).rtid.getOriginDepartureTime())
+      mergedResult(second, first);
+    else
+      mergedResult(first, second);
   }
 
+  // first is the earlier of the two trips.
   private TripMatchResult mergedResult(TripMatchResult first, TripMatchResult second) {
-    NyctTripId firstId = NyctTripId.buildFromTripDescriptor(first.getTripUpdate().getTrip());
-    NyctTripId secondId = NyctTripId.buildFromTripDescriptor(second.getTripUpdate().getTrip());
-    if (firstId.getOriginDepartureTime() > secondId.getOriginDepartureTime())
-      return mergedResult(second, first);
-
     String midpt0 = getReliefPoint(first.getTripUpdate(), 1);
     String midpt1 = getReliefPoint(second.getTripUpdate(), 0);
     if (midpt0 != null && midpt0.equals(midpt1)) {
-      Iterator<StopTimeUpdate.Builder> stusToAdd = second.getTripUpdateBuilder().getStopTimeUpdateBuilderList().iterator();
+      List<StopTimeUpdate> stusToAdd = second.getTripUpdate().getStopTimeUpdateList();
       GtfsRealtime.TripUpdate.Builder update = first.getTripUpdateBuilder();
-      StopTimeUpdate.Builder stu1 = stusToAdd.next();
-      StopTimeUpdate.Builder stu0 = update.getStopTimeUpdateBuilder(update.getStopTimeUpdateCount() - 1);
+      StopTimeUpdate stu1 = stusToAdd.get(0);
+      int last = update.getStopTimeUpdateCount() - 1;
+      StopTimeUpdate stu0 = update.getStopTimeUpdate(last);
       if (stu1.getStopId().equals(stu0.getStopId())) {
-        stu0.setDeparture(stu1.getDeparture());
-        while (stusToAdd.hasNext()) {
-          update.addStopTimeUpdate(stusToAdd.next());
-        }
+        update.setStopTimeUpdate(last, stu0.toBuilder().setDeparture(stu1.getDeparture()));
+        update.addAllStopTimeUpdate(stusToAdd.subList(1, stusToAdd.size()));
         second.setStatus(TripMatchResult.Status.MERGED);
         return first;
       }
@@ -313,4 +537,39 @@ public class TripUpdateProcessor {
       return null;
     return points[pt];
   }
+
+  // A trip update as read from the feed, with what is worked out about it on the way in: its static route ID, parsed
+  // trip ID (with the static route ID), start date in YYYYMMDD format and the epoch time in millis that it started.
+  private static class IngestedTripUpdate {
+    final GtfsRealtime.TripUpdate tripUpdate;
+    final String routeId;
+    final NyctTripId rtid;
+    final String startDate;
+    final long tripStart;
+
+    IngestedTripUpdate(GtfsRealtime.TripUpdate tripUpdate, Map<String, String> realtimeToStaticRouteMap) {
+      GtfsRealtime.TripDescriptor td = tripUpdate.getTrip();
+      this.tripUpdate = tripUpdate;
+      this.routeId = realtimeToStaticRouteMap.getOrDefault(td.getRouteId(), td.getRouteId());
+      this.rtid = NyctTripId.buildFromTripDescriptor(td, routeId);
+      this.startDate = td.getStartDate().length() > 8 ? fixedStartDate(td) : td.getStartDate();
+      this.tripStart = tripStart(rtid, startDate);
+    }
+
+    String assignmentKey() {
+      return TripAssignments.key(tripUpdate.getTrip().getTripId(), startDate);
+    }
+  }
+
+  private static class RouteMatch {
+    final String routeId;
+    final List<GtfsRealtime.TripUpdate> tripUpdates;
+    final MatchMetrics metrics;
+
+    RouteMatch(String routeId, List<GtfsRealtime.TripUpdate> tripUpdates, MatchMetrics metrics) {
+      this.routeId = routeId;
+      this.tripUpdates = tripUpdates;
+      this.metrics = metrics;
+    }
+  }
 }
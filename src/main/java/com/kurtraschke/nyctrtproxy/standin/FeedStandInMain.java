@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.standin;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Command line entry point for {@link FeedStandInServer}.
+ */
+public class FeedStandInMain {
+
+  public static void main(String[] args) throws IOException {
+    ArgumentParser parser = ArgumentParsers.newArgumentParser("nyct-feed-stand-in");
+    parser.description("Serves recorded MTA subway feeds, or records real ones, for load testing nyct-rt-proxy");
+    parser.addArgument("--dir").type(File.class).required(true).help("directory of recorded feeds");
+    parser.addArgument("--port").type(Integer.class).setDefault(8002).help("port to listen on");
+    parser.addArgument("--record").type(String.class).help("URL of the real feed endpoint; record responses from it instead of replaying");
+    parser.addArgument("--latency").type(Long.class).setDefault(0L).help("delay in ms before each response");
+    parser.addArgument("--jitter").type(Long.class).setDefault(0L).help("maximum random delay in ms added to the latency");
+    parser.addArgument("--error-rate").type(Double.class).setDefault(0.0).help("fraction of requests answered with HTTP 500");
+    parser.addArgument("--empty-rate").type(Double.class).setDefault(0.0).help("fraction of requests answered with an empty body");
+    parser.addArgument("--speed").type(Double.class).setDefault(1.0).help("replay speed");
+    parser.addArgument("--keep-timestamps").action(Arguments.storeTrue()).help("serve the recorded header timestamps instead of moving them to the present");
+
+    Namespace parsedArgs;
+    try {
+      parsedArgs = parser.parseArgs(args);
+    } catch (ArgumentParserException ex) {
+      parser.handleError(ex);
+      return;
+    }
+
+    FeedStandInServer server = new FeedStandInServer();
+    server.setDirectory(parsedArgs.get("dir"));
+    server.setPort(parsedArgs.getInt("port"));
+    server.setRecordUrl(parsedArgs.getString("record"));
+    server.setLatencyMillis(parsedArgs.get("latency"));
+    server.setJitterMillis(parsedArgs.get("jitter"));
+    server.setErrorRate(parsedArgs.getDouble("error_rate"));
+    server.setEmptyRate(parsedArgs.getDouble("empty_rate"));
+    server.setSpeed(parsedArgs.getDouble("speed"));
+    server.setShiftTimestamps(!parsedArgs.getBoolean("keep_timestamps"));
+    server.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        server.stop();
+      } catch (IOException e) {
+        // exiting anyway
+      }
+    }));
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.standin;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeNYCT;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the MTA feed endpoint (mta_esi.php), for load testing the proxy without hitting
+ * datamine.mta.info. Point NYCT.feedUrl at it.
+ *
+ * In replay mode, recorded feeds named {@code <feed_id>_<anything>.pb} are served per feed_id. A feed's recordings
+ * are played back in order of their header timestamps, at a configurable speed, looping at the end. Latency, server
+ * errors and empty bodies can be injected. Responses carry an ETag, so conditional requests get a 304 until the
+ * next recording is due.
+ *
+ * In record mode, requests are forwarded to the real endpoint and each successful response is also saved to disk as
+ * {@code <feed_id>_<epoch millis>.pb}, ready to be replayed.
+ */
+public class FeedStandInServer {
+
+  private static final Logger _log = LoggerFactory.getLogger(FeedStandInServer.class);
+
+  private static final Pattern RECORDING_NAME = Pattern.compile("(\\d+)_.*\\.pb");
+
+  // Gap assumed after the last recording of a feed before playback loops.
+  private static final long DEFAULT_INTERVAL = 60;
+
+  private static final ExtensionRegistry _extensionRegistry;
+
+  private int _port = 8002;
+
+  private File _directory;
+
+  private String _recordUrl;
+
+  private long _latencyMillis = 0;
+
+  private long _jitterMillis = 0;
+
+  private double _errorRate = 0;
+
+  private double _emptyRate = 0;
+
+  private double _speed = 1;
+
+  private boolean _shiftTimestamps = true;
+
+  private int _threads = 16;
+
+  private Map<Integer, List<Recording>> _recordingsByFeed = new HashMap<>();
+
+  private HttpServer _server;
+
+  private ExecutorService _executor;
+
+  private CloseableHttpClient _httpClient;
+
+  private long _startMillis;
+
+  private final AtomicLong _nRequests = new AtomicLong();
+
+  static {
+    _extensionRegistry = ExtensionRegistry.newInstance();
+    _extensionRegistry.add(GtfsRealtimeNYCT.nyctFeedHeader);
+    _extensionRegistry.add(GtfsRealtimeNYCT.nyctTripDescriptor);
+    _extensionRegistry.add(GtfsRealtimeNYCT.nyctStopTimeUpdate);
+  }
+
+  public void setPort(int port) {
+    _port = port;
+  }
+
+  /**
+   * @param directory directory recordings are replayed from, or saved to in record mode
+   */
+  public void setDirectory(File directory) {
+    _directory = directory;
+  }
+
+  /**
+   * @param recordUrl URL of the real feed endpoint; if set, the server records instead of replaying
+   */
+  public void setRecordUrl(String recordUrl) {
+    _recordUrl = recordUrl;
+  }
+
+  public void setLatencyMillis(long latencyMillis) {
+    _latencyMillis = latencyMillis;
+  }
+
+  /**
+   * @param jitterMillis maximum random delay added to the latency of each response
+   */
+  public void setJitterMillis(long jitterMillis) {
+    _jitterMillis = jitterMillis;
+  }
+
+  /**
+   * @param errorRate fraction of requests answered with HTTP 500
+   */
+  public void setErrorRate(double errorRate) {
+    _errorRate = errorRate;
+  }
+
+  /**
+   * @param emptyRate fraction of requests answered with HTTP 200 and an empty body
+   */
+  public void setEmptyRate(double emptyRate) {
+    _emptyRate = emptyRate;
+  }
+
+  /**
+   * @param speed replay speed; 2 plays recordings back twice as fast as they were captured
+   */
+  public void setSpeed(double speed) {
+    _speed = speed;
+  }
+
+  /**
+   * @param shiftTimestamps if true, header timestamps are moved to the present so that old recordings are not
+   *                        dropped by the proxy's latency limit
+   */
+  public void setShiftTimestamps(boolean shiftTimestamps) {
+    _shiftTimestamps = shiftTimestamps;
+  }
+
+  public void setThreads(int threads) {
+    _threads = threads;
+  }
+
+  public void start() throws IOException {
+    if (_recordUrl != null) {
+      _httpClient = HttpClients.createDefault();
+      Files.createDirectories(_directory.toPath());
+    } else {
+      loadRecordings();
+    }
+    _startMillis = System.currentTimeMillis();
+    _executor = Executors.newFixedThreadPool(_threads);
+    _server = HttpServer.create(new InetSocketAddress(_port), 0);
+    _server.createContext("/", this::handle);
+    _server.setExecutor(_executor);
+    _server.start();
+    _log.info("Feed stand-in listening on port {} ({} mode)", _server.getAddress().getPort(),
+            _recordUrl != null ? "record" : "replay");
+  }
+
+  public void stop() throws IOException {
+    _server.stop(0);
+    _executor.shutdownNow();
+    if (_httpClient != null)
+      _httpClient.close();
+    _log.info("Served {} requests", _nRequests.get());
+  }
+
+  /**
+   * @return port the server is listening on
+   */
+  public int getPort() {
+    return _server.getAddress().getPort();
+  }
+
+  private void loadRecordings() throws IOException {
+    File[] files = _directory.listFiles();
+    if (files == null)
+      throw new IOException("Not a directory: " + _directory);
+    for (File file : files) {
+      Matcher m = RECORDING_NAME.matcher(file.getName());
+      if (!m.matches())
+        continue;
+      int feedId = Integer.parseInt(m.group(1));
+      byte[] bytes = Files.readAllBytes(file.toPath());
+      FeedMessage message = FeedMessage.parseFrom(bytes, _extensionRegistry);
+      _recordingsByFeed.computeIfAbsent(feedId, k -> new ArrayList<>())
+              .add(new Recording(bytes, message, message.getHeader().getTimestamp()));
+    }
+    for (Map.Entry<Integer, List<Recording>> e : _recordingsByFeed.entrySet()) {
+      e.getValue().sort(Comparator.comparingLong(r -> r.timestamp));
+      _log.info("feed={}: {} recordings", e.getKey(), e.getValue().size());
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    _nRequests.incrementAndGet();
+    try {
+      Integer feedId = null;
+      for (NameValuePair param : URLEncodedUtils.parse(exchange.getRequestURI(), StandardCharsets.UTF_8)) {
+        if (param.getName().equals("feed_id"))
+          feedId = Integer.valueOf(param.getValue());
+      }
+      if (feedId == null) {
+        respond(exchange, HttpStatus.SC_BAD_REQUEST, new byte[0]);
+        return;
+      }
+
+      delay();
+
+      if (_recordUrl != null) {
+        record(exchange, feedId);
+        return;
+      }
+
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      if (random.nextDouble() < _errorRate) {
+        respond(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, new byte[0]);
+      } else if (random.nextDouble() < _emptyRate) {
+        respond(exchange, HttpStatus.SC_OK, new byte[0]);
+      } else {
+        replay(exchange, feedId);
+      }
+    } catch (Exception e) {
+      _log.error("Error handling {}", exchange.getRequestURI(), e);
+      if (exchange.getResponseCode() == -1)
+        respond(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, new byte[0]);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void delay() throws InterruptedException {
+    long delay = _latencyMillis + (_jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(_jitterMillis + 1) : 0);
+    if (delay > 0)
+      Thread.sleep(delay);
+  }
+
+  private void replay(HttpExchange exchange, int feedId) throws IOException {
+    List<Recording> recordings = _recordingsByFeed.get(feedId);
+    if (recordings == null) {
+      respond(exchange, HttpStatus.SC_NOT_FOUND, new byte[0]);
+      return;
+    }
+
+    // Position on the recordings' own timeline, looping after the last one.
+    long first = recordings.get(0).timestamp;
+    long last = recordings.get(recordings.size() - 1).timestamp;
+    long interval = recordings.size() > 1 ? Math.max(1, (last - first) / (recordings.size() - 1)) : DEFAULT_INTERVAL;
+    long period = last - first + interval;
+    long elapsed = (long) ((System.currentTimeMillis() - _startMillis) / 1000.0 * _speed);
+    long loop = elapsed / period;
+    long position = first + elapsed % period;
+
+    int index = 0;
+    while (index + 1 < recordings.size() && recordings.get(index + 1).timestamp <= position)
+      index++;
+    Recording recording = recordings.get(index);
+
+    String etag = "\"" + feedId + "-" + loop + "-" + index + "\"";
+    exchange.getResponseHeaders().set(HttpHeaders.ETAG, etag);
+    if (etag.equals(exchange.getRequestHeaders().getFirst(HttpHeaders.IF_NONE_MATCH))) {
+      respond(exchange, HttpStatus.SC_NOT_MODIFIED, null);
+      return;
+    }
+
+    byte[] body = recording.bytes;
+    if (_shiftTimestamps) {
+      // The time at which this recording became current in wall-clock terms, so each recording keeps a fixed
+      // timestamp for as long as it is served.
+      long shifted = _startMillis / 1000 + (long) ((loop * period + recording.timestamp - first) / _speed);
+      FeedMessage.Builder builder = recording.message.toBuilder();
+      builder.getHeaderBuilder().setTimestamp(shifted);
+      body = builder.build().toByteArray();
+    }
+    respond(exchange, HttpStatus.SC_OK, body);
+  }
+
+  private void record(HttpExchange exchange, int feedId) throws IOException {
+    HttpGet get = new HttpGet(_recordUrl + "?" + exchange.getRequestURI().getRawQuery());
+    try (CloseableHttpResponse response = _httpClient.execute(get)) {
+      int status = response.getStatusLine().getStatusCode();
+      byte[] body;
+      try (InputStream in = response.getEntity().getContent()) {
+        body = ByteStreams.toByteArray(in);
+      }
+      if (status == HttpStatus.SC_OK && body.length > 0) {
+        File file = new File(_directory, feedId + "_" + System.currentTimeMillis() + ".pb");
+        Files.write(file.toPath(), body);
+        _log.info("recorded feed={} to {}", feedId, file);
+      }
+      respond(exchange, status, body);
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    if (body.length > 0) {
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+
+  private static class Recording {
+    final byte[] bytes;
+    final FeedMessage message;
+    final long timestamp;
+
+    Recording(byte[] bytes, FeedMessage message, long timestamp) {
+      this.bytes = bytes;
+      this.message = message;
+      this.timestamp = timestamp;
+    }
+  }
+}
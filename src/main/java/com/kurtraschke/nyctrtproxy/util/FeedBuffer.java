@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.util;
+
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reusable buffer that a feed's response bodies are read into before parsing.
+ *
+ * Buffer sizes are powers of two. The buffer grows to the next size class when a body does not fit, and shrinks
+ * again after a run of bodies that would have fit in a smaller class, so a feed that is briefly large does not hold
+ * on to a large buffer forever. Not thread-safe: a buffer belongs to one feed, which is only read by one thread at
+ * a time.
+ */
+public class FeedBuffer {
+
+  private static final int MIN_SIZE = 1 << 16;
+
+  // Protobuf refuses messages over 64MB by default.
+  private static final int MAX_SIZE = 1 << 26;
+
+  private static final int SHRINK_AFTER = 10;
+
+  private byte[] _buffer = new byte[MIN_SIZE];
+
+  private int _length = 0;
+
+  private int _nSmallReads = 0;
+
+  /**
+   * Read a stream to its end into this buffer, replacing the previous contents.
+   *
+   * @param in stream to read; not closed
+   * @param expectedLength length of the body if known (e.g. from Content-Length), or a negative number
+   * @return number of bytes read
+   * @throws IOException if the stream cannot be read, or the body exceeds the largest size class
+   */
+  public int readFrom(InputStream in, long expectedLength) throws IOException {
+    if (expectedLength > _buffer.length)
+      _buffer = new byte[sizeClass(expectedLength)];
+
+    int length = 0;
+    int n;
+    while ((n = in.read(_buffer, length, _buffer.length - length)) != -1) {
+      length += n;
+      if (length == _buffer.length) {
+        int next = in.read();
+        if (next == -1)
+          break;
+        byte[] grown = new byte[sizeClass(length + 1L)];
+        System.arraycopy(_buffer, 0, grown, 0, length);
+        grown[length++] = (byte) next;
+        _buffer = grown;
+      }
+    }
+    _length = length;
+
+    if (_buffer.length > MIN_SIZE && length <= _buffer.length / 4) {
+      if (++_nSmallReads >= SHRINK_AFTER) {
+        byte[] shrunk = new byte[sizeClass(length)];
+        System.arraycopy(_buffer, 0, shrunk, 0, length);
+        _buffer = shrunk;
+        _nSmallReads = 0;
+      }
+    } else {
+      _nSmallReads = 0;
+    }
+    return length;
+  }
+
+  /**
+   * @return a CodedInputStream over the last body read, parsing straight from the buffer without a further copy
+   */
+  public CodedInputStream newCodedInput() {
+    return CodedInputStream.newInstance(_buffer, 0, _length);
+  }
+
+  /**
+   * @return the backing array; only the first {@link #getLength()} bytes hold the last body read
+   */
+  public byte[] getBytes() {
+    return _buffer;
+  }
+
+  public int getLength() {
+    return _length;
+  }
+
+  public int getCapacity() {
+    return _buffer.length;
+  }
+
+  private static int sizeClass(long length) throws IOException {
+    if (length > MAX_SIZE)
+      throw new IOException("feed body larger than " + MAX_SIZE + " bytes");
+    int size = MIN_SIZE;
+    while (size < length)
+      size <<= 1;
+    return size;
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.util;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Parser for serialized FeedMessages that decodes the header on its own and then only the entities that are needed.
+ *
+ * Construction makes one pass over the top level of the message, recording where the header and each entity are
+ * without decoding them. Entities can then be filtered by the route ID of their trip update, which is read straight
+ * from the wire without building the entity.
+ */
+public class LazyFeedParser {
+
+  // Field numbers from gtfs-realtime.proto
+  private static final int FEED_MESSAGE_HEADER = 1;
+  private static final int FEED_MESSAGE_ENTITY = 2;
+  private static final int FEED_ENTITY_TRIP_UPDATE = 3;
+  private static final int TRIP_UPDATE_TRIP = 1;
+  private static final int TRIP_DESCRIPTOR_ROUTE_ID = 5;
+
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_FIXED64 = 1;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  private static final int WIRETYPE_START_GROUP = 3;
+  private static final int WIRETYPE_END_GROUP = 4;
+  private static final int WIRETYPE_FIXED32 = 5;
+
+  private final byte[] _buffer;
+
+  // Positions of the header occurrences (normally one) and of the entities, each packed as (offset << 32 | length).
+  private long[] _headers = new long[1];
+  private int _nHeaders = 0;
+  private long[] _entities = new long[256];
+  private int _nEntities = 0;
+
+  private int _pos;
+
+  /**
+   * @param buffer serialized FeedMessage; must not be modified while this parser is in use
+   * @param length number of bytes of the message in buffer
+   * @throws InvalidProtocolBufferException if the top level of the message is malformed
+   */
+  public LazyFeedParser(byte[] buffer, int length) throws InvalidProtocolBufferException {
+    _buffer = buffer;
+    _pos = 0;
+    while (_pos < length) {
+      int tag = readTag(length);
+      int field = tag >>> 3;
+      if ((tag & 7) == WIRETYPE_LENGTH_DELIMITED && (field == FEED_MESSAGE_HEADER || field == FEED_MESSAGE_ENTITY)) {
+        int size = readLength(length);
+        long range = ((long) _pos << 32) | size;
+        if (field == FEED_MESSAGE_HEADER) {
+          _headers = append(_headers, _nHeaders++, range);
+        } else {
+          _entities = append(_entities, _nEntities++, range);
+        }
+        _pos += size;
+      } else {
+        skipField(tag, length);
+      }
+    }
+  }
+
+  /**
+   * @param registry extensions to decode, such as nyctFeedHeader
+   * @return the decoded feed header
+   * @throws IOException if the header is missing or malformed
+   */
+  public FeedHeader parseHeader(ExtensionRegistryLite registry) throws IOException {
+    if (_nHeaders == 0)
+      throw new InvalidProtocolBufferException("FeedMessage has no header");
+    if (_nHeaders == 1)
+      return FeedHeader.parseFrom(input(_headers[0]), registry);
+    // Repeated occurrences of a message field are merged.
+    FeedHeader.Builder builder = FeedHeader.newBuilder();
+    for (int i = 0; i < _nHeaders; i++)
+      builder.mergeFrom(input(_headers[i]), registry);
+    return builder.build();
+  }
+
+  /**
+   * @return number of entities in the message, whether or not they are decoded
+   */
+  public int getEntityCount() {
+    return _nEntities;
+  }
+
+  /**
+   * Decode a FeedMessage holding the header and the trip update entities whose route is accepted by the filter.
+   * Entities without a trip update are left out.
+   *
+   * @param header header returned by {@link #parseHeader}
+   * @param registry extensions to decode
+   * @param routeFilter filter on the route ID of each entity's trip descriptor, as it appears in the feed
+   * @return the filtered message
+   * @throws IOException if an entity is malformed
+   */
+  public FeedMessage parse(FeedHeader header, ExtensionRegistryLite registry, Predicate<String> routeFilter)
+          throws IOException {
+    FeedMessage.Builder builder = FeedMessage.newBuilder().setHeader(header);
+    for (int i = 0; i < _nEntities; i++) {
+      String routeId = peekRouteId(_entities[i]);
+      if (routeId != null && routeFilter.test(routeId))
+        builder.addEntity(FeedEntity.parseFrom(input(_entities[i]), registry));
+    }
+    return builder.build();
+  }
+
+  // Route ID of the entity's trip update, "" if the trip has none, or null if the entity is not a trip update.
+  private String peekRouteId(long entity) throws InvalidProtocolBufferException {
+    long tripUpdate = findField(entity, FEED_ENTITY_TRIP_UPDATE);
+    if (tripUpdate < 0)
+      return null;
+    long trip = findField(tripUpdate, TRIP_UPDATE_TRIP);
+    if (trip < 0)
+      return "";
+    long routeId = findField(trip, TRIP_DESCRIPTOR_ROUTE_ID);
+    if (routeId < 0)
+      return "";
+    return new String(_buffer, offset(routeId), length(routeId), StandardCharsets.UTF_8);
+  }
+
+  // Find the last occurrence of a length-delimited field within a message, as the decoded message would see it.
+  private long findField(long message, int fieldNumber) throws InvalidProtocolBufferException {
+    int end = offset(message) + length(message);
+    long found = -1;
+    _pos = offset(message);
+    while (_pos < end) {
+      int tag = readTag(end);
+      if ((tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+        int size = readLength(end);
+        if (tag >>> 3 == fieldNumber)
+          found = ((long) _pos << 32) | size;
+        _pos += size;
+      } else {
+        skipField(tag, end);
+      }
+    }
+    return found;
+  }
+
+  private CodedInputStream input(long range) {
+    return CodedInputStream.newInstance(_buffer, offset(range), length(range));
+  }
+
+  private int readTag(int end) throws InvalidProtocolBufferException {
+    int tag = (int) readVarint(end);
+    if (tag >>> 3 == 0)
+      throw new InvalidProtocolBufferException("Protocol message contained an invalid tag (zero).");
+    return tag;
+  }
+
+  private int readLength(int end) throws InvalidProtocolBufferException {
+    long size = readVarint(end);
+    if (size < 0 || size > end - _pos)
+      throw truncated();
+    return (int) size;
+  }
+
+  private long readVarint(int end) throws InvalidProtocolBufferException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (_pos >= end)
+        throw truncated();
+      byte b = _buffer[_pos++];
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return result;
+    }
+    throw new InvalidProtocolBufferException("CodedInputStream encountered a malformed varint.");
+  }
+
+  private void skipField(int tag, int end) throws InvalidProtocolBufferException {
+    switch (tag & 7) {
+      case WIRETYPE_VARINT:
+        readVarint(end);
+        break;
+      case WIRETYPE_FIXED64:
+        skipBytes(8, end);
+        break;
+      case WIRETYPE_LENGTH_DELIMITED:
+        skipBytes(readLength(end), end);
+        break;
+      case WIRETYPE_START_GROUP:
+        int endTag;
+        do {
+          endTag = readTag(end);
+          if ((endTag & 7) != WIRETYPE_END_GROUP)
+            skipField(endTag, end);
+        } while ((endTag & 7) != WIRETYPE_END_GROUP);
+        if (endTag >>> 3 != tag >>> 3)
+          throw new InvalidProtocolBufferException("Protocol message end-group tag did not match expected tag.");
+        break;
+      case WIRETYPE_FIXED32:
+        skipBytes(4, end);
+        break;
+      default:
+        throw new InvalidProtocolBufferException("Protocol message tag had invalid wire type.");
+    }
+  }
+
+  private void skipBytes(int n, int end) throws InvalidProtocolBufferException {
+    if (n > end - _pos)
+      throw truncated();
+    _pos += n;
+  }
+
+  private static InvalidProtocolBufferException truncated() {
+    return new InvalidProtocolBufferException("While parsing a protocol message, the input ended unexpectedly.");
+  }
+
+  private static long[] append(long[] array, int index, long value) {
+    if (index == array.length)
+      array = Arrays.copyOf(array, array.length * 2);
+    array[index] = value;
+    return array;
+  }
+
+  private static int offset(long range) {
+    return (int) (range >>> 32);
+  }
+
+  private static int length(long range) {
+    return (int) range;
+  }
+}
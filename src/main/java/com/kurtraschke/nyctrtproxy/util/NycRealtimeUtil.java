@@ -50,16 +50,25 @@ public class NycRealtimeUtil {
   // take a TripUpdate and return the epoch time in millis that this trip started
   private static long tripUpdateStart(GtfsRealtime.TripUpdate tu) {
     GtfsRealtime.TripDescriptor td = tu.getTrip();
-    NyctTripId rtid = NyctTripId.buildFromTripDescriptor(td);
+    String startDate = td.getStartDate().length() > 8 ? fixedStartDate(td) : td.getStartDate();
+    return tripStart(NyctTripId.buildFromTripDescriptor(td), startDate);
+  }
+
+  /**
+   * @param rtid parsed realtime trip ID, may be null
+   * @param startDate start date of the trip, in YYYYMMDD format
+   * @return epoch time in millis that the trip started, -1 if the ID was not parsed, or Long.MAX_VALUE if the start
+   *   date cannot be parsed
+   */
+  public static long tripStart(NyctTripId rtid, String startDate) {
     if (rtid == null)
       return -1;
     int minHds = rtid.getOriginDepartureTime();
-    String startDate = td.getStartDate().length() > 8 ? fixedStartDate(td) : td.getStartDate();
     ServiceDate sd;
     try {
       sd = ServiceDate.parseString(startDate);
     } catch (ParseException e) {
-      _log.error("Error parsing trip update={}, exception={}", tu, e);
+      _log.error("Error parsing start date={} of trip={}, exception={}", startDate, rtid, e);
       return Long.MAX_VALUE;
     }
     return sd.getAsDate().getTime() + (minHds * 600); // 600 millis in 1/100 minute
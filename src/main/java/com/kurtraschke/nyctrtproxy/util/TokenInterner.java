@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.util;
+
+/**
+ * Interns short tokens (route IDs, network IDs) looked up by a range of a CharSequence, so a token that has been
+ * seen before is returned without creating a substring.
+ *
+ * The set of such tokens in the feeds is small, so the table is capped; once it is full, new tokens are returned as
+ * plain strings.
+ *
+ * Lookups take no lock, since they run on every trip ID parse, from feed and route matching threads at once. The
+ * table is never changed once published: a new token is added to a copy under a lock, and the copy replaces the
+ * table. Tokens are added rarely after the first feeds, so copying costs little.
+ */
+public class TokenInterner {
+
+  private static final int MAX_SIZE = 4096;
+
+  private volatile String[] _table = new String[256];
+
+  // Guarded by this.
+  private int _size = 0;
+
+  /**
+   * @param s characters
+   * @param start start index, inclusive
+   * @param end end index, exclusive
+   * @return a string equal to s[start, end), the same instance for every call with equal characters
+   */
+  public String intern(CharSequence s, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++)
+      hash = 31 * hash + s.charAt(i);
+
+    String token = find(_table, hash, s, start, end);
+    return token != null ? token : add(hash, s.subSequence(start, end).toString());
+  }
+
+  public String intern(String s) {
+    return s == null ? null : intern(s, 0, s.length());
+  }
+
+  private synchronized String add(int hash, String token) {
+    String[] table = _table;
+    String existing = find(table, hash, token, 0, token.length());
+    if (existing != null)
+      return existing;
+    if (_size >= MAX_SIZE)
+      return token;
+    int length = (_size + 1) * 2 > table.length ? table.length * 2 : table.length;
+    String[] copy = new String[length];
+    for (String t : table) {
+      if (t != null)
+        insert(copy, t);
+    }
+    insert(copy, token);
+    _size++;
+    _table = copy;
+    return token;
+  }
+
+  private static String find(String[] table, int hash, CharSequence s, int start, int end) {
+    int mask = table.length - 1;
+    String token;
+    for (int slot = spread(hash) & mask; (token = table[slot]) != null; slot = (slot + 1) & mask) {
+      if (token.hashCode() == hash && regionEquals(token, s, start, end))
+        return token;
+    }
+    return null;
+  }
+
+  private static void insert(String[] table, String token) {
+    int mask = table.length - 1;
+    int slot = spread(token.hashCode()) & mask;
+    while (table[slot] != null)
+      slot = (slot + 1) & mask;
+    table[slot] = token;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean regionEquals(String token, CharSequence s, int start, int end) {
+    if (token.length() != end - start)
+      return false;
+    for (int i = 0; i < token.length(); i++) {
+      if (token.charAt(i) != s.charAt(start + i))
+        return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.model.ActiveServices;
+import com.kurtraschke.nyctrtproxy.services.ActiveServiceCache;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.util.Date;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ActiveServiceCacheTest extends RtTestRunner {
+
+  @Inject
+  private CalendarServiceData _csd;
+
+  @Inject
+  private ActiveServiceCache _cache;
+
+  @Test
+  public void testMatchesCalendar() {
+    ServiceDate sd = new ServiceDate(2017, 3, 10);
+    for (int i = 0; i < 14; i++, sd = sd.next()) {
+      ActiveServices services = _cache.getActiveServices(sd);
+      assertSame(services, _cache.getActiveServices(sd));
+      Set<AgencyAndId> expected = _csd.getServiceIdsForDate(sd);
+      for (AgencyAndId serviceId : _csd.getServiceIds()) {
+        assertEquals(expected.contains(serviceId), services.isActive(serviceId));
+        assertEquals(expected.contains(serviceId), services.isActive(_cache.getServiceIndex(serviceId)));
+      }
+      long origin = sd.getAsCalendar(_csd.getTimeZoneForAgencyId(_agencyId)).getTimeInMillis() / 1000;
+      assertEquals(origin, services.getOrigin());
+    }
+  }
+
+  // Dates are taken in the agency's time zone whatever the JVM's is: 2017-03-14 02:00 UTC is 22:00 on the 13th in
+  // New York.
+  @Test
+  public void testServiceDateInAgencyTimeZone() {
+    assertEquals(new ServiceDate(2017, 3, 13), _cache.getServiceDate(new Date(1489456800000L)));
+    assertEquals(new ServiceDate(2017, 3, 14), _cache.getServiceDate(new Date(1489456800000L + 3 * 3600 * 1000L)));
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.*;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+import com.kurtraschke.nyctrtproxy.services.ActivatedTripMatcher;
+import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
+import com.kurtraschke.nyctrtproxy.services.TripMatchContext;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.fixedStartDate;
+import static org.junit.Assert.*;
+
+/**
+ * Matching all TripUpdates of a route at once must give the same results as matching them one by one.
+ */
+public class BatchMatchingTest extends RtTestRunner {
+
+  @Inject
+  private LazyTripMatcher _lazyMatcher;
+
+  @Inject
+  private ActivatedTripMatcher _activatedMatcher;
+
+  @Test
+  public void test1_peak() throws Exception {
+    test("1_peak_sample.pb");
+  }
+
+  @Test
+  public void test1_2017_03_13() throws Exception {
+    test("1_2017-03-13.pb");
+  }
+
+  @Test
+  public void test11_2017_03_23() throws Exception {
+    test("11_2017-03-23_00:33.pb");
+  }
+
+  @Test
+  public void test16_2017_03_13() throws Exception {
+    test("16_2017-03-13.pb");
+  }
+
+  @Test
+  public void test21_2017_03_13() throws Exception {
+    test("21_2017-03-13.pb");
+  }
+
+  private void test(String protobuf) throws Exception {
+    FeedMessage msg = readFeedMessage(protobuf);
+    long timestamp = msg.getHeader().getTimestamp();
+    Date start = new Date((timestamp - 3 * 3600) * 1000);
+    Date end = new Date(timestamp * 1000);
+
+    Map<String, List<TripUpdate>> updatesByRoute = msg.getEntityList().stream()
+            .filter(FeedEntity::hasTripUpdate)
+            .map(FeedEntity::getTripUpdate)
+            .collect(Collectors.groupingBy(tu -> tu.getTrip().getRouteId()));
+
+    for (Map.Entry<String, List<TripUpdate>> e : updatesByRoute.entrySet()) {
+      String routeId = e.getKey();
+      List<TripUpdate.Builder> tripUpdates = new ArrayList<>();
+      List<NyctTripId> rtids = new ArrayList<>();
+      for (TripUpdate tu : e.getValue()) {
+        TripUpdate.Builder tub = TripUpdate.newBuilder(tu);
+        TripDescriptor.Builder tb = tub.getTripBuilder();
+        NyctTripId rtid = NyctTripId.buildFromTripDescriptor(tb);
+        if (rtid != null)
+          tb.setTripId(rtid.toString());
+        if (tb.getStartDate().length() > 8)
+          tb.setStartDate(fixedStartDate(tb));
+        tripUpdates.add(tub);
+        rtids.add(rtid);
+      }
+
+      assertSameResults(_lazyMatcher, routeId, tripUpdates, rtids, timestamp);
+
+      // the original matcher cannot handle unparseable IDs
+      List<TripUpdate.Builder> parsedTripUpdates = new ArrayList<>();
+      List<NyctTripId> parsedRtids = new ArrayList<>();
+      for (int i = 0; i < rtids.size(); i++) {
+        if (rtids.get(i) != null) {
+          parsedTripUpdates.add(tripUpdates.get(i));
+          parsedRtids.add(rtids.get(i));
+        }
+      }
+      TripMatchContext context = _activatedMatcher.initForFeed(start, end, Collections.singleton(routeId));
+      assertSameResults(context, routeId, parsedTripUpdates, parsedRtids, timestamp);
+    }
+  }
+
+  private static void assertSameResults(TripMatchContext context, String routeId, List<TripUpdate.Builder> tripUpdates,
+                                        List<NyctTripId> rtids, long timestamp) {
+    List<TripMatchResult> batch = context.matchAll(routeId, tripUpdates, rtids, timestamp);
+    assertEquals(tripUpdates.size(), batch.size());
+    for (int i = 0; i < tripUpdates.size(); i++) {
+      TripMatchResult single = context.match(tripUpdates.get(i), rtids.get(i), timestamp);
+      TripMatchResult result = batch.get(i);
+      String msg = tripUpdates.get(i).getTrip().getTripId();
+      assertSame(msg, tripUpdates.get(i), result.getTripUpdate());
+      assertEquals(msg, single.getStatus(), result.getStatus());
+      assertEquals(msg, single.getTripId(), result.getTripId());
+      assertEquals(msg, single.getDelta(), result.getDelta());
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.kurtraschke.nyctrtproxy.model.CircuitBreaker;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpenAfterThreshold() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+    breaker.recordFailure(0);
+    breaker.recordFailure(0);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.recordSuccess();
+    breaker.recordFailure(0);
+    breaker.recordFailure(0);
+    assertTrue(breaker.allowRequest(0));
+    breaker.recordFailure(100);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest(1099));
+  }
+
+  @Test
+  public void testHalfOpen() {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+    breaker.recordFailure(0);
+    assertFalse(breaker.allowRequest(999));
+
+    // a failed trial request opens the breaker again for the full period
+    assertTrue(breaker.allowRequest(1000));
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.recordFailure(1500);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest(2000));
+
+    assertTrue(breaker.allowRequest(2500));
+    breaker.recordSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeNYCT;
+import com.kurtraschke.nyctrtproxy.util.FeedBuffer;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class FeedBufferTest {
+
+  @Test
+  public void testParseMatchesStream() throws Exception {
+    ExtensionRegistry registry = ExtensionRegistry.newInstance();
+    registry.add(GtfsRealtimeNYCT.nyctFeedHeader);
+    registry.add(GtfsRealtimeNYCT.nyctTripDescriptor);
+    registry.add(GtfsRealtimeNYCT.nyctStopTimeUpdate);
+
+    FeedBuffer buffer = new FeedBuffer();
+    FeedMessage expected;
+    try (InputStream in = getClass().getResourceAsStream("/1_peak_sample.pb")) {
+      expected = FeedMessage.parseFrom(in, registry);
+    }
+    try (InputStream in = getClass().getResourceAsStream("/1_peak_sample.pb")) {
+      buffer.readFrom(in, -1);
+    }
+    assertEquals(expected, FeedMessage.parseFrom(buffer.newCodedInput(), registry));
+  }
+
+  @Test
+  public void testGrowAndShrink() throws Exception {
+    FeedBuffer buffer = new FeedBuffer();
+    int initial = buffer.getCapacity();
+
+    byte[] large = new byte[initial * 4 + 1];
+    large[large.length - 1] = 42;
+    assertEquals(large.length, buffer.readFrom(new ByteArrayInputStream(large), -1));
+    assertEquals(initial * 8, buffer.getCapacity());
+
+    // reused while bodies stay in the same size class
+    byte[] data = new byte[initial * 2 + 1];
+    buffer.readFrom(new ByteArrayInputStream(data), data.length);
+    assertEquals(initial * 8, buffer.getCapacity());
+
+    byte[] small = new byte[10];
+    for (int i = 0; i < 9; i++)
+      buffer.readFrom(new ByteArrayInputStream(small), -1);
+    assertEquals(initial * 8, buffer.getCapacity());
+    buffer.readFrom(new ByteArrayInputStream(small), -1);
+    assertEquals(initial, buffer.getCapacity());
+    assertEquals(10, buffer.getLength());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.protobuf.ExtensionRegistry;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtimeNYCT;
+import com.kurtraschke.nyctrtproxy.standin.FeedStandInServer;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class FeedStandInTest {
+
+  private FeedStandInServer _server;
+
+  private CloseableHttpClient _client = HttpClients.createDefault();
+
+  @After
+  public void after() throws Exception {
+    _client.close();
+    if (_server != null)
+      _server.stop();
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    start(0);
+    ExtensionRegistry registry = ExtensionRegistry.newInstance();
+    registry.add(GtfsRealtimeNYCT.nyctFeedHeader);
+
+    HttpGet get = new HttpGet(url(21));
+    String etag;
+    try (CloseableHttpResponse response = _client.execute(get)) {
+      assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+      etag = response.getFirstHeader(HttpHeaders.ETAG).getValue();
+      FeedMessage message;
+      try (InputStream in = response.getEntity().getContent()) {
+        message = FeedMessage.parseFrom(in, registry);
+      }
+      assertFalse(message.getEntityList().isEmpty());
+      // timestamps are shifted to the present
+      assertTrue(Math.abs(System.currentTimeMillis() / 1000 - message.getHeader().getTimestamp()) < 60);
+    }
+
+    get.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    try (CloseableHttpResponse response = _client.execute(get)) {
+      assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusLine().getStatusCode());
+    }
+
+    try (CloseableHttpResponse response = _client.execute(new HttpGet(url(99)))) {
+      assertEquals(HttpStatus.SC_NOT_FOUND, response.getStatusLine().getStatusCode());
+    }
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    start(1);
+    try (CloseableHttpResponse response = _client.execute(new HttpGet(url(1)))) {
+      assertEquals(HttpStatus.SC_INTERNAL_SERVER_ERROR, response.getStatusLine().getStatusCode());
+    }
+  }
+
+  private void start(double errorRate) throws Exception {
+    _server = new FeedStandInServer();
+    _server.setPort(0);
+    _server.setDirectory(new File(getClass().getResource("/1_peak_sample.pb").getFile()).getParentFile());
+    _server.setErrorRate(errorRate);
+    _server.start();
+  }
+
+  private String url(int feedId) {
+    return "http://localhost:" + _server.getPort() + "/mta_esi.php?key=test&feed_id=" + feedId;
+  }
+}
@@ -23,6 +23,7 @@ import com.kurtraschke.nyctrtproxy.model.NyctTripId;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
 import com.kurtraschke.nyctrtproxy.services.ActivatedTripMatcher;
 import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
+import com.kurtraschke.nyctrtproxy.services.TripMatchContext;
 import org.junit.Test;
 
 import java.io.IOException;
@@ -42,6 +43,8 @@ public abstract class LazyMatchingTest extends RtTestRunner {
   @Inject
   private ActivatedTripMatcher atm;
 
+  protected TripMatchContext activatedContext;
+
   private String routeId;
   private String filename;
 
@@ -72,7 +75,7 @@ public abstract class LazyMatchingTest extends RtTestRunner {
         Date start = range.hasStart() ? new Date(range.getStart() * 1000) : earliestTripStart(updates);
         Date end = range.hasEnd() ? new Date(range.getEnd() * 1000) : new Date(msg.getHeader().getTimestamp() * 1000);
 
-        atm.initForFeed(start, end, Collections.singleton(routeId));
+        activatedContext = atm.initForFeed(start, end, Collections.singleton(routeId));
 
         long timestamp = msg.getHeader().getTimestamp();
 
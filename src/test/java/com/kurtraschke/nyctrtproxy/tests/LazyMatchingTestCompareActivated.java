@@ -15,11 +15,9 @@
  */
 package com.kurtraschke.nyctrtproxy.tests;
 
-import com.google.inject.Inject;
 import com.google.transit.realtime.GtfsRealtime;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
-import com.kurtraschke.nyctrtproxy.services.ActivatedTripMatcher;
 import org.junit.After;
 
 import static org.junit.Assert.assertEquals;
@@ -30,14 +28,11 @@ public class LazyMatchingTestCompareActivated extends LazyMatchingTest {
     super("SI", "11_2017-03-13.pb");
   }
 
-  @Inject
-  private ActivatedTripMatcher atm;
-
   private int nRuns = 0;
 
   @Override
   public void checkMatchResult(long timestamp, NyctTripId rtid, GtfsRealtime.TripUpdateOrBuilder tripUpdate, TripMatchResult lazyTrip) {
-    TripMatchResult activatedTrip = atm.match(tripUpdate, rtid, timestamp);
+    TripMatchResult activatedTrip = activatedContext.match(tripUpdate, rtid, timestamp);
 
     if (activatedTrip.hasResult()) {
       String atid = activatedTrip.getResult().getTrip().getId().getId();
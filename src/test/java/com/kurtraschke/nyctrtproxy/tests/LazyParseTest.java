@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.common.io.ByteStreams;
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.*;
+import com.google.transit.realtime.GtfsRealtimeNYCT;
+import com.kurtraschke.nyctrtproxy.services.ActivatedTripMatcher;
+import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import com.kurtraschke.nyctrtproxy.util.LazyFeedParser;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LazyParseTest extends RtTestRunner {
+
+  @Inject
+  private TripUpdateProcessor _processor;
+
+  @Inject
+  private ActivatedTripMatcher _activatedTripMatcher;
+
+  @Test
+  public void test1_peak() throws Exception {
+    test(1, "1_peak_sample.pb");
+  }
+
+  @Test
+  public void test1_2017_03_13() throws Exception {
+    test(1, "1_2017-03-13.pb");
+  }
+
+  @Test
+  public void test11_2017_03_21() throws Exception {
+    test(11, "11_2017-03-21.pb");
+  }
+
+  @Test
+  public void test16_2017_03_13() throws Exception {
+    test(16, "16_2017-03-13.pb");
+  }
+
+  @Test
+  public void test21_2017_03_13() throws Exception {
+    test(21, "21_2017-03-13.pb");
+  }
+
+  // A period without a start begins at the earliest start of any trip update in the feed, including those on routes
+  // that are not matched. Lazy parsing must not leave those out. ActivatedTripMatcher is used since it depends on
+  // the start of the period.
+  @Test
+  public void testPeriodWithoutStart() throws Exception {
+    FeedMessage msg = readFeedMessage("1_peak_sample.pb");
+    FeedHeader.Builder header = msg.getHeader().toBuilder();
+    GtfsRealtimeNYCT.NyctFeedHeader.Builder nyctHeader = header.getExtension(GtfsRealtimeNYCT.nyctFeedHeader).toBuilder();
+    for (GtfsRealtimeNYCT.TripReplacementPeriod.Builder trp : nyctHeader.getTripReplacementPeriodBuilderList())
+      trp.getReplacementPeriodBuilder().clearStart();
+    header.setExtension(GtfsRealtimeNYCT.nyctFeedHeader, nyctHeader.build());
+
+    // Early trip on a route that no period covers.
+    FeedEntity.Builder early = msg.getEntityList().stream()
+            .filter(FeedEntity::hasTripUpdate)
+            .findFirst().get()
+            .toBuilder()
+            .setId("early");
+    early.getTripUpdateBuilder().getTripBuilder().setRouteId("ZZ").setTripId("000100_ZZ..N");
+
+    byte[] bytes = msg.toBuilder().setHeader(header).addEntity(early).build().toByteArray();
+
+    TripUpdateProcessor processor = new TripUpdateProcessor();
+    processor.setLatencyLimit(-1);
+    processor.setTripMatcher(_activatedTripMatcher);
+    test(1, bytes, processor);
+  }
+
+  private void test(int feedId, String protobuf) throws Exception {
+    byte[] bytes;
+    try (InputStream stream = getClass().getResourceAsStream("/" + protobuf)) {
+      bytes = ByteStreams.toByteArray(stream);
+    }
+    test(feedId, bytes, _processor);
+  }
+
+  // Processing the lazily parsed feed must give the same result as processing the whole feed.
+  private void test(int feedId, byte[] bytes, TripUpdateProcessor processor) throws Exception {
+    FeedMessage msg = FeedMessage.parseFrom(bytes, _extensionRegistry);
+
+    LazyFeedParser parser = new LazyFeedParser(bytes, bytes.length);
+    FeedHeader header = parser.parseHeader(_extensionRegistry);
+    assertEquals(msg.getHeader(), header);
+    assertEquals(msg.getEntityCount(), parser.getEntityCount());
+
+    FeedMessage lazy = parser.parse(header, _extensionRegistry, processor.getRouteFilter(feedId, header));
+    assertTrue(lazy.getEntityCount() <= msg.getEntityCount());
+
+    List<TripUpdate> expected = processor.processFeed(feedId, msg);
+    List<TripUpdate> actual = processor.processFeed(feedId, lazy);
+    assertEquals(expected, actual);
+  }
+}
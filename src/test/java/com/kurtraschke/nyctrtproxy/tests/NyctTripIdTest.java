@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.*;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the trip ID parser against the regex it replaced.
+ */
+public class NyctTripIdTest extends RtTestRunner {
+
+  private static final Pattern PATTERN = Pattern.compile("([A-Z0-9]+_)?(?<originDepartureTime>[0-9-]{6})_?(?<route>[A-Z0-9]+)\\.+(?<direction>[NS])(?<network>[A-Z0-9]*)$");
+
+  private static final String[] FEEDS = { "1_2017-03-13.pb", "1_peak_sample.pb", "2_2017-03-13.pb", "11_2017-03-13.pb",
+          "16_2017-03-13.pb", "21_2017-03-13.pb", "21_2017-04-20.pb" };
+
+  @Inject
+  private GtfsRelationalDao _dao;
+
+  @Test
+  public void testStaticTripIds() {
+    for (Trip trip : _dao.getAllTrips()) {
+      String expected = parseWithRegex(trip.getId().getId());
+      assertNotNull(expected);
+      assertEquals(expected, fields(parse(trip.getId().getId())));
+    }
+  }
+
+  @Test
+  public void testRealtimeTripIds() throws IOException {
+    for (String feed : FEEDS) {
+      for (FeedEntity entity : readFeedMessage(feed).getEntityList()) {
+        if (entity.hasTripUpdate()) {
+          String tripId = entity.getTripUpdate().getTrip().getTripId();
+          assertEquals(tripId, parseWithRegex(tripId), fields(parse(tripId)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEdgeCases() {
+    String[] tripIds = { "A20170123WKD_000800_1..S03R", "083500_GS.N04R", "131350_L..N", "-00100_1..N",
+            "X_Y_000800_1..S", "000800__1..S", "0008001..S", "0008001.S.N", "000800_1.S.", "000800_1..s", "", "_" };
+    for (String tripId : tripIds)
+      assertEquals(tripId, parseWithRegex(tripId), fields(parse(tripId)));
+  }
+
+  @Test
+  public void testTokensInterned() {
+    NyctTripId a = parse("000800_GS.N04R");
+    NyctTripId b = parse("A20170123WKD_010800_GS.N04R");
+    assertSame(a.getRouteId(), b.getRouteId());
+    assertSame(a.getNetworkId(), b.getNetworkId());
+  }
+
+  private static NyctTripId parse(String tripId) {
+    return NyctTripId.buildFromTripDescriptor(TripDescriptor.newBuilder().setTripId(tripId));
+  }
+
+  private static String fields(NyctTripId id) {
+    if (id == null)
+      return null;
+    return id.getOriginDepartureTime() + "|" + id.getPathId() + "|" + id.getRouteId() + "|" + id.getDirection() + "|" + id.getNetworkId();
+  }
+
+  private static String parseWithRegex(String tripId) {
+    Matcher matcher = PATTERN.matcher(tripId);
+    if (!matcher.find())
+      return null;
+    String networkId = matcher.group("network");
+    return Integer.parseInt(matcher.group("originDepartureTime"), 10)
+            + "|" + StringUtils.rightPad(matcher.group("route"), 3, '.') + matcher.group("direction")
+            + "|" + matcher.group("route")
+            + "|" + matcher.group("direction")
+            + "|" + (networkId.isEmpty() ? null : networkId);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.*;
+import com.kurtraschke.nyctrtproxy.services.TripMatcher;
+import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matching routes in parallel must give the same result as matching them serially. Also logs the wall time of each
+ * on the peak sample.
+ */
+public class ParallelMatchingTest extends RtTestRunner {
+
+  private static final Logger _log = LoggerFactory.getLogger(ParallelMatchingTest.class);
+
+  private static final int N_RUNS = 10;
+
+  @Inject
+  private TripMatcher _matcher;
+
+  @Test
+  public void test1_peak() throws Exception {
+    test(1, "1_peak_sample.pb");
+  }
+
+  @Test
+  public void test16_2017_03_13() throws Exception {
+    test(16, "16_2017-03-13.pb");
+  }
+
+  @Test
+  public void test21_2017_03_13() throws Exception {
+    test(21, "21_2017-03-13.pb");
+  }
+
+  private void test(int feedId, String protobuf) throws Exception {
+    FeedMessage msg = readFeedMessage(protobuf);
+    TripUpdateProcessor serial = processor(false);
+    TripUpdateProcessor parallel = processor(true);
+
+    try {
+      List<TripUpdate> expected = serial.processFeed(feedId, msg);
+      assertEquals(expected, parallel.processFeed(feedId, msg));
+
+      long serialNanos = time(serial, feedId, msg);
+      long parallelNanos = time(parallel, feedId, msg);
+      _log.info("{}: serial {} ms, parallel {} ms per feed", protobuf, serialNanos / 1e6 / N_RUNS, parallelNanos / 1e6 / N_RUNS);
+    } finally {
+      parallel.stop();
+    }
+  }
+
+  private TripUpdateProcessor processor(boolean parallel) {
+    TripUpdateProcessor processor = new TripUpdateProcessor();
+    processor.setLatencyLimit(-1);
+    processor.setTripMatcher(_matcher);
+    processor.setParallelRouteMatching(parallel);
+    processor.setRouteMatchingThreads(4);
+    processor.start();
+    return processor;
+  }
+
+  private static long time(TripUpdateProcessor processor, int feedId, FeedMessage msg) {
+    long start = System.nanoTime();
+    for (int i = 0; i < N_RUNS; i++)
+      processor.processFeed(feedId, msg);
+    return System.nanoTime() - start;
+  }
+}
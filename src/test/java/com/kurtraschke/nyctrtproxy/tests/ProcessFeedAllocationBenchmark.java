@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.*;
+import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import com.sun.management.ThreadMXBean;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Logs the wall time and the bytes allocated by the processing thread per processFeed call, so that changes to how
+ * trip updates are rewritten can be compared on the same sample. Repeated processing must give the same result.
+ *
+ * The name keeps it out of the default test run, since it only reports numbers. Run it on its own with
+ * {@code mvn test -Dtest=ProcessFeedAllocationBenchmark}.
+ */
+public class ProcessFeedAllocationBenchmark extends RtTestRunner {
+
+  private static final Logger _log = LoggerFactory.getLogger(ProcessFeedAllocationBenchmark.class);
+
+  private static final int N_WARMUP = 5;
+
+  private static final int N_RUNS = 20;
+
+  @Inject
+  private TripUpdateProcessor _processor;
+
+  @Test
+  public void test1_peak() throws Exception {
+    test(1, "1_peak_sample.pb");
+  }
+
+  @Test
+  public void test21_2017_03_13() throws Exception {
+    test(21, "21_2017-03-13.pb");
+  }
+
+  private void test(int feedId, String protobuf) throws Exception {
+    FeedMessage msg = readFeedMessage(protobuf);
+    List<TripUpdate> expected = _processor.processFeed(feedId, msg);
+    for (int i = 0; i < N_WARMUP; i++)
+      assertEquals(expected, _processor.processFeed(feedId, msg));
+
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < N_RUNS; i++)
+      _processor.processFeed(feedId, msg);
+    long nanos = System.nanoTime() - start;
+    long allocatedAfter = allocatedBytes();
+
+    long allocated = allocatedBefore >= 0 && allocatedAfter >= 0 ? (allocatedAfter - allocatedBefore) / N_RUNS : -1;
+    _log.info("{}: {} ms, {} bytes allocated per feed", protobuf, nanos / 1e6 / N_RUNS, allocated);
+  }
+
+  // As in ProxyProvider: bytes allocated so far by this thread, or -1 if that cannot be measured.
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (!(threadBean instanceof ThreadMXBean))
+      return -1;
+    ThreadMXBean bean = (ThreadMXBean) threadBean;
+    if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled())
+      return -1;
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -26,11 +26,13 @@ import com.google.protobuf.ExtensionRegistry;
 import com.google.transit.realtime.GtfsRealtime;
 import com.google.transit.realtime.GtfsRealtimeNYCT;
 import com.kurtraschke.nyctrtproxy.services.ActivatedTripMatcher;
+import com.kurtraschke.nyctrtproxy.services.ActiveServiceCache;
 import com.kurtraschke.nyctrtproxy.services.CalendarServiceDataProvider;
 import com.kurtraschke.nyctrtproxy.services.CloudwatchProxyDataListener;
 import com.kurtraschke.nyctrtproxy.services.GtfsRelationalDaoProvider;
 import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
 import com.kurtraschke.nyctrtproxy.services.ProxyDataListener;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
 import com.kurtraschke.nyctrtproxy.services.TripActivator;
 import com.kurtraschke.nyctrtproxy.services.TripMatcher;
 import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
@@ -57,6 +59,8 @@ public abstract class RtTestRunner {
 
   static {
     _injector = Guice.createInjector(getTestModule());
+    _injector.getInstance(ActiveServiceCache.class).start();
+    _injector.getInstance(StaticTripIndex.class).start();
     _injector.getInstance(TripActivator.class).start();
 
     _extensionRegistry = ExtensionRegistry.newInstance();
@@ -101,6 +105,15 @@ public abstract class RtTestRunner {
         bind(ProxyDataListener.class)
                 .toInstance(listener);
 
+        bind(ActiveServiceCache.class)
+                .toInstance(new ActiveServiceCache());
+
+        // tests compare the index with the DAO's stop times
+        StaticTripIndex index = new StaticTripIndex();
+        index.setReleaseStopTimes(false);
+        bind(StaticTripIndex.class)
+                .toInstance(index);
+
         bind(TripMatcher.class)
                 .toInstance(new LazyTripMatcher());
 
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.StaticTripInfo;
+import com.kurtraschke.nyctrtproxy.model.StopPattern;
+import com.kurtraschke.nyctrtproxy.services.ActiveServiceCache;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
+import com.kurtraschke.nyctrtproxy.services.TripActivator;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class StaticTripIndexTest extends RtTestRunner {
+
+  @Inject
+  private GtfsRelationalDao _dao;
+
+  @Inject
+  private StaticTripIndex _index;
+
+  @Inject
+  private ActiveServiceCache _activeServiceCache;
+
+  @Test
+  public void testTripInfo() {
+    for (Trip trip : _dao.getAllTrips()) {
+      List<StopTime> stopTimes = _dao.getStopTimesForTrip(trip);
+      StaticTripInfo info = _index.getTripInfo(trip);
+      assertEquals(NyctTripId.buildFromTrip(trip).toString(), info.getParsedTripId().toString());
+      assertEquals(stopTimes.get(0).getDepartureTime(), info.getFirstDepartureTime());
+      assertEquals(stopTimes.get(stopTimes.size() - 1).getArrivalTime(), info.getLastArrivalTime());
+      assertEquals(stopTimes.get(stopTimes.size() - 1).getStop().getId().getId(), info.getLastStopId());
+      assertEquals(stopTimes.size(), info.getStopTimeCount());
+      for (int i = 0; i < stopTimes.size(); i++) {
+        StopTime st = stopTimes.get(i);
+        assertEquals(st.getArrivalTime(), info.getArrivalTime(i));
+        assertEquals(st.getDepartureTime(), info.getDepartureTime(i));
+        assertEquals(st.getStop().getId().getId(), info.getStopId(i));
+        assertTrue(info.hasStop(st.getStop().getId().getId()));
+      }
+      assertFalse(info.hasStop("not a stop"));
+    }
+  }
+
+  @Test
+  public void testLookupsMatchScan() {
+    int from = 8 * 3600, to = 9 * 3600;
+    for (Route route : _dao.getAllRoutes()) {
+      for (String dir : new String[] { "N", "S" }) {
+        List<Trip> trips = _dao.getTripsForRoute(route).stream()
+                .filter(t -> NyctTripId.buildFromTrip(t).getDirection().equals(dir))
+                .collect(Collectors.toList());
+        String routeId = route.getId().getId();
+
+        Set<Trip> expected = trips.stream()
+                .filter(t -> {
+                  int start = _dao.getStopTimesForTrip(t).get(0).getDepartureTime();
+                  return start >= from && start <= to;
+                })
+                .collect(Collectors.toSet());
+        assertEquals(expected, trips(_index.getTripsForStartRange(routeId, dir, from, to)));
+
+        for (Trip trip : trips) {
+          int odt = NyctTripId.buildFromTrip(trip).getOriginDepartureTime();
+          assertTrue(trips(_index.getTripsForOriginDepartureTime(routeId, dir, odt)).contains(trip));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testStopPatterns() {
+    Map<List<String>, StopPattern> patterns = new HashMap<>();
+    for (Trip trip : _dao.getAllTrips()) {
+      List<String> stopIds = _dao.getStopTimesForTrip(trip).stream()
+              .map(st -> st.getStop().getId().getId())
+              .collect(Collectors.toList());
+      StopPattern pattern = _index.getTripInfo(trip).getStopPattern();
+      String lastStopId = stopIds.get(stopIds.size() - 1);
+      assertTrue(pattern.endsAt(lastStopId));
+      if (!stopIds.get(0).equals(lastStopId))
+        assertFalse(pattern.endsAt(stopIds.get(0)));
+      // every stop the trip makes is in the pattern, but not one it does not make
+      for (String stopId : stopIds) {
+        assertEquals(_index.indexOfStop(stopId), pattern.indexOfStop(stopId));
+        assertTrue(pattern.hasStop(pattern.indexOfStop(stopId)));
+      }
+      assertFalse(pattern.hasStop(pattern.indexOfStop("not a stop")));
+      // stops are found in order, and out of order
+      for (int i = 0; i < stopIds.size(); i++) {
+        assertEquals(i, pattern.positionOfStop(stopIds.get(i), i));
+        assertEquals(stopIds.get(i), stopIds.get(pattern.positionOfStop(stopIds.get(i), stopIds.size() - 1 - i)));
+      }
+      assertEquals(-1, pattern.positionOfStop("not a stop", 0));
+      // trips making the same stops share a pattern
+      StopPattern other = patterns.putIfAbsent(stopIds, pattern);
+      if (other != null)
+        assertSame(other, pattern);
+    }
+  }
+
+  // A trip whose ID cannot be parsed is left out of the index, and out of TripActivator, rather than failing startup.
+  @Test
+  public void testUnparseableTripId() {
+    Trip template = _dao.getAllTrips().iterator().next();
+    Trip bad = new Trip();
+    bad.setId(new AgencyAndId(template.getId().getAgencyId(), "not a trip id"));
+    bad.setRoute(template.getRoute());
+    bad.setServiceId(template.getServiceId());
+    List<Trip> allTrips = new ArrayList<>(_dao.getAllTrips());
+    allTrips.add(bad);
+    List<StopTime> stopTimes = _dao.getStopTimesForTrip(template);
+
+    // The test DAO, with the extra trip.
+    GtfsRelationalDao dao = (GtfsRelationalDao) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { GtfsRelationalDao.class }, (proxy, method, args) -> {
+              if (method.getName().equals("getAllTrips"))
+                return allTrips;
+              if (method.getName().equals("getStopTimesForTrip") && args[0] == bad)
+                return stopTimes;
+              return method.invoke(_dao, args);
+            });
+
+    StaticTripIndex index = new StaticTripIndex();
+    index.setGtfsRelationalDao(dao);
+    index.start();
+    assertNull(index.getTripInfo(bad));
+    assertNotNull(index.getTripInfo(template));
+
+    TripActivator activator = new TripActivator();
+    activator.setGtfsRelationalDao(dao);
+    activator.setStaticTripIndex(index);
+    activator.setActiveServiceCache(_activeServiceCache);
+    activator.start();
+  }
+
+  private static Set<Trip> trips(List<StaticTripInfo> infos) {
+    return infos.stream().map(StaticTripInfo::getTrip).collect(Collectors.toCollection(HashSet::new));
+  }
+}
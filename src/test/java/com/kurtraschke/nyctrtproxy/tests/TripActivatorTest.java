@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
+import com.kurtraschke.nyctrtproxy.services.TripActivator;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TripActivatorTest extends RtTestRunner {
+
+  @Inject
+  private TripActivator _tripActivator;
+
+  // 2017-03-13 08:00 to 09:00 in New York
+  private static final Date START = new Date(1489406400000L);
+  private static final Date END = new Date(1489410000000L);
+
+  @Test
+  public void testOnlyRequestedRoutes() {
+    List<ActivatedTrip> trips = _tripActivator.getTripsForRangeAndRoute(START, END, "L").collect(Collectors.toList());
+    assertFalse(trips.isEmpty());
+    for (ActivatedTrip at : trips)
+      assertEquals("L", at.getTrip().getRoute().getId().getId());
+  }
+
+  @Test
+  public void testRoutesCombine() {
+    Set<ActivatedTrip> combined = _tripActivator.getTripsForRangeAndRoutes(START, END, ImmutableSet.of("1", "L"))
+            .collect(Collectors.toSet());
+    Set<ActivatedTrip> separate = _tripActivator.getTripsForRangeAndRoute(START, END, "1").collect(Collectors.toSet());
+    separate.addAll(_tripActivator.getTripsForRangeAndRoute(START, END, "L").collect(Collectors.toSet()));
+    assertEquals(separate, combined);
+  }
+
+  @Test
+  public void testActivatedTripsReused() {
+    List<ActivatedTrip> first = _tripActivator.getTripsForRangeAndRoute(START, END, "1").collect(Collectors.toList());
+    List<ActivatedTrip> second = _tripActivator.getTripsForRangeAndRoute(START, END, "1").collect(Collectors.toList());
+    assertEquals(first.size(), second.size());
+    for (int i = 0; i < first.size(); i++)
+      assertSame(first.get(i), second.get(i));
+  }
+
+  @Test
+  public void testSlidingWindow() {
+    // Move forward a minute at a time for three hours from 22:00, until the start of the range is an hour past
+    // midnight, so the window moves to a new service date; then jump back.
+    long start = new ServiceDate(START).next().getAsDate().getTime() - 2 * 3600 * 1000L;
+    for (int i = 0; i < 180; i++)
+      assertSlidingWindow(new Date(start + i * 60000L), new Date(start + i * 60000L + 1800000L), "L");
+    assertSlidingWindow(START, END, "L");
+    // Range that starts earlier but ends later.
+    assertSlidingWindow(new Date(START.getTime() - 60000L), new Date(END.getTime() + 60000L), "L");
+  }
+
+  // Feeds polling the same route with different ranges keep their own windows, so one does not rebuild the other's.
+  @Test
+  public void testWindowPerFeed() {
+    Date earlyStart = new Date(START.getTime() - 7200000L), earlyEnd = new Date(END.getTime() - 7200000L);
+    List<ActivatedTrip> first = _tripActivator.getActiveTripsForRoute(1, START, END, "L");
+    List<ActivatedTrip> other = _tripActivator.getActiveTripsForRoute(2, earlyStart, earlyEnd, "L");
+    List<ActivatedTrip> second = _tripActivator.getActiveTripsForRoute(1, START, END, "L");
+    assertSame(first, second);
+    assertEquals(_tripActivator.getTripsForRangeAndRoute(earlyStart, earlyEnd, "L").collect(Collectors.toSet()),
+            ImmutableSet.copyOf(other));
+  }
+
+  private void assertSlidingWindow(Date start, Date end, String routeId) {
+    Set<String> expected = _tripActivator.getTripsForRangeAndRoute(start, end, routeId)
+            .map(TripActivatorTest::key)
+            .collect(Collectors.toSet());
+    List<ActivatedTrip> actual = _tripActivator.getActiveTripsForRoute(start, end, routeId);
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected, actual.stream().map(TripActivatorTest::key).collect(Collectors.toSet()));
+  }
+
+  private static String key(ActivatedTrip at) {
+    return at.getServiceDate().getAsString() + " " + at.getTrip().getId();
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.*;
+import com.google.transit.realtime.GtfsRealtimeNYCT;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.services.ActiveServiceCache;
+import com.kurtraschke.nyctrtproxy.services.TripMatchContext;
+import com.kurtraschke.nyctrtproxy.services.TripMatcher;
+import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TripAssignmentTest extends RtTestRunner {
+
+  @Inject
+  private TripMatcher _matcher;
+
+  @Inject
+  private ActiveServiceCache _activeServiceCache;
+
+  @Test
+  public void test1_peak() throws Exception {
+    test(1, "1_peak_sample.pb");
+  }
+
+  @Test
+  public void test16_2017_03_13() throws Exception {
+    test(16, "16_2017-03-13.pb");
+  }
+
+  @Test
+  public void test21_2017_03_13() throws Exception {
+    test(21, "21_2017-03-13.pb");
+  }
+
+  // A trip update that is matched in one poll is not passed to the matcher in the next.
+  @Test
+  public void testMatcherSkippedForReusedAssignment() throws Exception {
+    FeedMessage sample = readFeedMessage("1_peak_sample.pb");
+    FeedEntity entity = findMatchedEntity(sample);
+    CountingMatcher matcher = new CountingMatcher(_matcher);
+    TripUpdateProcessor processor = newProcessor(matcher, true);
+
+    List<TripUpdate> first = processor.processFeed(1, feed(sample, entity));
+    assertEquals(1, matcher.nMatched.get());
+
+    List<TripUpdate> second = processor.processFeed(1, feed(sample, entity));
+    assertEquals(1, matcher.nMatched.get());
+    assertEquals(first, second);
+  }
+
+  // An assignment is dropped when its RT trip is missing from a poll, so the trip is matched again when it returns.
+  @Test
+  public void testAssignmentExpires() throws Exception {
+    FeedMessage sample = readFeedMessage("1_peak_sample.pb");
+    FeedEntity entity = findMatchedEntity(sample);
+    CountingMatcher matcher = new CountingMatcher(_matcher);
+    TripUpdateProcessor processor = newProcessor(matcher, true);
+
+    processor.processFeed(1, feed(sample, entity));
+    assertEquals(1, matcher.nMatched.get());
+
+    assertTrue(processor.processFeed(1, feed(sample)).isEmpty());
+
+    processor.processFeed(1, feed(sample, entity));
+    assertEquals(2, matcher.nMatched.get());
+  }
+
+  // An RT trip that holds a static trip keeps it when an RT trip that is a better match for it appears.
+  @Test
+  public void testRememberedAssignmentWins() throws Exception {
+    FeedMessage sample = readFeedMessage("1_peak_sample.pb");
+    FeedEntity strict = findMatchedEntity(sample);
+    String staticTripId = newProcessor(_matcher, false).processFeed(1, feed(sample, strict)).get(0).getTrip().getTripId();
+
+    // Same trip, departing 30 seconds later: a worse match for the same static trip.
+    NyctTripId rtid = NyctTripId.buildFromTripDescriptor(strict.getTripUpdate().getTrip());
+    FeedEntity.Builder late = strict.toBuilder().setId("late");
+    late.getTripUpdateBuilder().getTripBuilder()
+            .setTripId(String.format("%06d_%s", rtid.getOriginDepartureTime() + 50, rtid.getPathId()));
+
+    TripUpdateProcessor processor = newProcessor(_matcher, true);
+    List<TripUpdate> first = processor.processFeed(1, feed(sample, late.build()));
+    assertEquals(1, first.size());
+    assertEquals(staticTripId, first.get(0).getTrip().getTripId());
+
+    List<TripUpdate> second = processor.processFeed(1, feed(sample, late.build(), strict));
+    assertEquals(2, second.size());
+    List<String> matched = second.stream()
+            .filter(tu -> tu.getTrip().getScheduleRelationship() != TripDescriptor.ScheduleRelationship.ADDED)
+            .map(tu -> tu.getTrip().getTripId())
+            .collect(Collectors.toList());
+    List<String> added = second.stream()
+            .filter(tu -> tu.getTrip().getScheduleRelationship() == TripDescriptor.ScheduleRelationship.ADDED)
+            .map(tu -> tu.getTrip().getTripId())
+            .collect(Collectors.toList());
+    assertEquals(1, matched.size());
+    assertEquals(staticTripId, matched.get(0));
+    assertEquals(1, added.size());
+    assertEquals(rtid.toString(), added.get(0));
+  }
+
+  // An assignment whose service date is no longer current is not reused: the trip update is matched again.
+  @Test
+  public void testAssignmentRevalidatedAfterServiceDateChange() throws Exception {
+    FeedMessage sample = readFeedMessage("1_peak_sample.pb");
+    FeedEntity entity = findMatchedEntity(sample);
+    CountingMatcher matcher = new CountingMatcher(_matcher);
+    TripUpdateProcessor processor = newProcessor(matcher, true);
+
+    processor.processFeed(1, feed(sample, entity));
+    assertEquals(1, matcher.nMatched.get());
+
+    // Same trip update two days later, so the remembered trip's service date is neither today nor yesterday.
+    long shift = 2 * 86400;
+    FeedHeader.Builder header = sample.getHeader().toBuilder();
+    header.setTimestamp(header.getTimestamp() + shift);
+    GtfsRealtimeNYCT.NyctFeedHeader.Builder nyctHeader = header.getExtension(GtfsRealtimeNYCT.nyctFeedHeader).toBuilder();
+    for (GtfsRealtimeNYCT.TripReplacementPeriod.Builder trp : nyctHeader.getTripReplacementPeriodBuilderList()) {
+      TimeRange.Builder range = trp.getReplacementPeriodBuilder();
+      if (range.hasStart())
+        range.setStart(range.getStart() + shift);
+      if (range.hasEnd())
+        range.setEnd(range.getEnd() + shift);
+    }
+    header.setExtension(GtfsRealtimeNYCT.nyctFeedHeader, nyctHeader.build());
+    FeedMessage later = FeedMessage.newBuilder().setHeader(header).addEntity(entity).build();
+
+    processor.processFeed(1, later);
+    assertEquals(2, matcher.nMatched.get());
+  }
+
+  // Static trips are matched at most once, and a second poll of the same feed keeps the first poll's matches.
+  private void test(int feedId, String protobuf) throws Exception {
+    TripUpdateProcessor processor = newProcessor(_matcher, true);
+
+    FeedMessage msg = readFeedMessage(protobuf);
+    List<TripUpdate> first = processor.processFeed(feedId, msg);
+    assertNoDuplicates(first);
+
+    List<TripUpdate> second = processor.processFeed(feedId, msg);
+    assertEquals(first, second);
+  }
+
+  private TripUpdateProcessor newProcessor(TripMatcher matcher, boolean rememberTripAssignments) {
+    TripUpdateProcessor processor = new TripUpdateProcessor();
+    processor.setLatencyLimit(-1);
+    processor.setTripMatcher(matcher);
+    processor.setActiveServiceCache(_activeServiceCache);
+    processor.setRememberTripAssignments(rememberTripAssignments);
+    return processor;
+  }
+
+  // First trip update of the feed that is matched when it is alone in a feed.
+  private FeedEntity findMatchedEntity(FeedMessage msg) {
+    TripUpdateProcessor processor = newProcessor(_matcher, false);
+    for (FeedEntity entity : msg.getEntityList()) {
+      if (!entity.hasTripUpdate())
+        continue;
+      List<TripUpdate> tus = processor.processFeed(1, feed(msg, entity));
+      if (tus.size() == 1 && tus.get(0).getTrip().getScheduleRelationship() != TripDescriptor.ScheduleRelationship.ADDED)
+        return entity;
+    }
+    fail("no matched trip update");
+    return null;
+  }
+
+  // Feed with the header of msg and the given entities.
+  private static FeedMessage feed(FeedMessage msg, FeedEntity... entities) {
+    FeedMessage.Builder builder = FeedMessage.newBuilder().setHeader(msg.getHeader());
+    for (FeedEntity entity : entities)
+      builder.addEntity(entity);
+    return builder.build();
+  }
+
+  private static void assertNoDuplicates(List<TripUpdate> tripUpdates) {
+    Set<String> tripIds = new HashSet<>();
+    for (TripUpdate tu : tripUpdates) {
+      if (tu.getTrip().getScheduleRelationship() != TripDescriptor.ScheduleRelationship.ADDED)
+        assertTrue(tu.getTrip().getTripId(), tripIds.add(tu.getTrip().getTripId()));
+    }
+  }
+
+  // Counts trip updates passed to the matcher.
+  private static class CountingMatcher implements TripMatcher {
+
+    private final TripMatcher _delegate;
+
+    private final AtomicInteger nMatched = new AtomicInteger();
+
+    CountingMatcher(TripMatcher delegate) {
+      _delegate = delegate;
+    }
+
+    @Override
+    public TripMatchContext initForFeed(Date start, Date end, Set<String> routeIds) {
+      TripMatchContext context = _delegate.initForFeed(start, end, routeIds);
+      return (tu, rtid, timestamp) -> {
+        nMatched.incrementAndGet();
+        return context.match(tu, rtid, timestamp);
+      };
+    }
+  }
+}
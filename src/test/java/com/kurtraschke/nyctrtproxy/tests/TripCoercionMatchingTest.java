@@ -15,14 +15,24 @@
  */
 package com.kurtraschke.nyctrtproxy.tests;
 
+import com.google.inject.Inject;
 import com.google.transit.realtime.GtfsRealtime;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
+import org.junit.Test;
+
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.fixedStartDate;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TripCoercionMatchingTest extends LazyMatchingTest {
+
+  @Inject
+  private LazyTripMatcher _matcher;
+
   public TripCoercionMatchingTest() {
     super("SI", "11_2017-03-21.pb");
   }
@@ -61,6 +71,29 @@ public class TripCoercionMatchingTest extends LazyMatchingTest {
     }
   }
 
+  // A last stop that is not in the static GTFS does not prune the loose candidates.
+  @Test
+  public void testUnknownLastStop() throws Exception {
+    GtfsRealtime.FeedMessage msg = readFeedMessage("11_2017-03-21.pb");
+    for (GtfsRealtime.FeedEntity entity : msg.getEntityList()) {
+      if (!entity.hasTripUpdate())
+        continue;
+      GtfsRealtime.TripUpdate.Builder tub = GtfsRealtime.TripUpdate.newBuilder(entity.getTripUpdate());
+      GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
+      NyctTripId rtid = NyctTripId.buildFromTripDescriptor(tb);
+      if (rtid == null || rtid.getOriginDepartureTime() != 63800 || tub.getStopTimeUpdateCount() == 0)
+        continue;
+      tb.setTripId(rtid.toString());
+      if (tb.getStartDate().length() > 8)
+        tb.setStartDate(fixedStartDate(tb));
+      tub.getStopTimeUpdateBuilder(tub.getStopTimeUpdateCount() - 1).setStopId("not a stop");
+
+      assertCoercedMatch(_matcher.match(tub, rtid, msg.getHeader().getTimestamp()), "R20161106WKD_063600_SI.S03R");
+      return;
+    }
+    fail("no trip update for 063800_SI..S");
+  }
+
   private static void assertLooseMatch(TripMatchResult result, String expected) {
     assertTrue(result.hasResult());
     String matchedTripId = result.getResult().getTrip().getId().getId();